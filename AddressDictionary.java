@@ -0,0 +1,279 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * - Interns sender and receiver addresses: every distinct address gets a
+ * compact int id (0, 1, 2, ... in order of first appearance) and one
+ * canonical String instance that every transaction can share
+ * - Lookups work on the UTF-8 bytes of an address as well as on a String, so
+ * a parser can look up a token straight from its read buffer and only
+ * creates a String the first time an address is seen
+ * - Open addressing with linear probing over int arrays; no boxing and no
+ * entry objects
+ * - hits() and misses() count the lookups that found an existing address and
+ * the ones that added a new one
+ * - Not thread-safe
+ */
+public class AddressDictionary {
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	// id + 1 of the address in each slot, 0 for a free slot
+	private int[] slots;
+	private int[] slotHashes;
+	private byte[][] encodings;
+	private String[] names;
+	private int size;
+	private long hits;
+	private long misses;
+
+	public AddressDictionary() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize is the number of distinct addresses the dictionary is
+	 *                     sized for up front
+	 */
+	public AddressDictionary(int expectedSize) {
+		int capacity = 16;
+		while (capacity < 2 * expectedSize && capacity < (1 << 30)) {
+			capacity *= 2;
+		}
+		slots = new int[capacity];
+		slotHashes = new int[capacity];
+		encodings = new byte[capacity / 2][];
+		names = new String[capacity / 2];
+		size = 0;
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * @return the id of the address held in bytes [offset, offset + length),
+	 *         adding it if it is new
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(L) expected for an address of L
+	 *         bytes
+	 */
+	public int idOf(byte[] bytes, int offset, int length) {
+		int hash = FNV_OFFSET;
+		for (int i = offset; i < offset + length; i++) {
+			hash = (hash ^ (bytes[i] & 0xff)) * FNV_PRIME;
+		}
+		int mask = slots.length - 1;
+		int slot = spread(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (slotHashes[slot] == hash
+					&& Arrays.equals(encodings[id], 0, encodings[id].length, bytes, offset, offset + length)) {
+				hits++;
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		String name = new String(bytes, offset, length, StandardCharsets.UTF_8);
+		byte[] encoding = Arrays.copyOfRange(bytes, offset, offset + length);
+		if (!Arrays.equals(encoding, name.getBytes(StandardCharsets.UTF_8))) {
+			// not valid UTF-8: key the address by the text it decodes to, like a
+			// String lookup would
+			return idOf(name);
+		}
+		misses++;
+		return add(name, encoding, hash, slot);
+	}
+
+	/**
+	 * @return the id of the address, adding it if it is new; a new address is
+	 *         kept as the given instance
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(L) expected for an address of L
+	 *         characters
+	 */
+	public int idOf(String name) {
+		int id = find(name);
+		if (id >= 0) {
+			hits++;
+			return id;
+		}
+		misses++;
+		byte[] encoding = name.getBytes(StandardCharsets.UTF_8);
+		int hash = FNV_OFFSET;
+		for (byte b : encoding) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		int mask = slots.length - 1;
+		int slot = spread(hash) & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		return add(name, encoding, hash, slot);
+	}
+
+	/**
+	 * @return the id of the address, or -1 if it is not in the dictionary.
+	 *         Nothing is added and the statistics are not touched
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(L) expected for an address of L
+	 *         characters
+	 */
+	public int find(String name) {
+		if (name == null) {
+			throw new RuntimeException("An address cannot be null");
+		}
+		int length = name.length();
+		int hash = FNV_OFFSET;
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c >= 0x80) {
+				return findEncoded(name.getBytes(StandardCharsets.UTF_8));
+			}
+			hash = (hash ^ c) * FNV_PRIME;
+		}
+		// ASCII: the characters are the UTF-8 bytes, compare them in place
+		int mask = slots.length - 1;
+		int slot = spread(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (slotHashes[slot] == hash && sameAscii(encodings[id], name)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the canonical instance of the address, adding it if it is new
+	 */
+	public String intern(String name) {
+		// look up first, the lookup may grow the array
+		int id = idOf(name);
+		return names[id];
+	}
+
+	/**
+	 * @return the canonical instance of the address held in bytes [offset,
+	 *         offset + length); a String is only created for a new address
+	 */
+	public String intern(byte[] bytes, int offset, int length) {
+		int id = idOf(bytes, offset, length);
+		return names[id];
+	}
+
+	/**
+	 * @return the address with the given id
+	 */
+	public String name(int id) {
+		if (id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException("Address id " + id + " out of bounds for " + size + " addresses");
+		}
+		return names[id];
+	}
+
+	// the UTF-8 bytes of an address, shared: callers must not modify them
+	byte[] encoding(int id) {
+		if (id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException("Address id " + id + " out of bounds for " + size + " addresses");
+		}
+		return encodings[id];
+	}
+
+	/**
+	 * @return the number of distinct addresses
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of lookups that found an address already in the
+	 *         dictionary
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that added a new address
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d addresses, %d hits, %d misses", size, hits, misses);
+	}
+
+	private int findEncoded(byte[] encoding) {
+		int hash = FNV_OFFSET;
+		for (byte b : encoding) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		int mask = slots.length - 1;
+		int slot = spread(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (slotHashes[slot] == hash && Arrays.equals(encodings[id], encoding)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int add(String name, byte[] encoding, int hash, int slot) {
+		int id = size++;
+		if (id == names.length) {
+			names = Arrays.copyOf(names, 2 * id);
+			encodings = Arrays.copyOf(encodings, 2 * id);
+		}
+		names[id] = name;
+		encodings[id] = encoding;
+		slots[slot] = id + 1;
+		slotHashes[slot] = hash;
+		// keep the load factor at or below one half
+		if (2 * size > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		int[] oldSlots = slots;
+		int[] oldHashes = slotHashes;
+		slots = new int[2 * oldSlots.length];
+		slotHashes = new int[slots.length];
+		int mask = slots.length - 1;
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != 0) {
+				int slot = spread(oldHashes[i]) & mask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = oldSlots[i];
+				slotHashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+	private static boolean sameAscii(byte[] encoding, String name) {
+		if (encoding.length != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < encoding.length; i++) {
+			if (encoding[i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// FNV-1a leaves the low bits weak for short keys
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+}
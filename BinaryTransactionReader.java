@@ -0,0 +1,212 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * - Streaming reader for files written by BinaryTransactionWriter
+ * - The body is memory-mapped in windows and records are decoded straight from
+ * the mapped pages; each distinct name is decoded once and shared by every
+ * transaction that refers to it
+ * - The CRC32 of the body is accumulated over the mapped windows while
+ * reading and checked once the last record has been read; bytes after the
+ * last record are rejected as well
+ */
+public class BinaryTransactionReader implements Iterator<Transaction>, Closeable {
+	private static final long WINDOW_SIZE = 64L << 20;
+	// sender and receiver with new names of maximum length, amount and fee
+	private static final int MAX_RECORD_SIZE = 2 * (6 + BinaryTransactionWriter.MAX_NAME_LENGTH) + 8;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final long recordCount;
+	private final long expectedChecksum;
+	private final CRC32 checksum;
+	private final ArrayList<String> names;
+	private final byte[] nameScratch;
+	private MappedByteBuffer window;
+	private long windowBase;
+	private long read;
+
+	public BinaryTransactionReader(String fileName) {
+		this(Paths.get(fileName));
+	}
+
+	public BinaryTransactionReader(Path path) {
+		this.path = path;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			throw new RuntimeException("File not found: " + path, e);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + path + ": " + e.getMessage(), e);
+		}
+		try {
+			fileSize = channel.size();
+			if (fileSize < BinaryTransactionWriter.HEADER_SIZE) {
+				throw new RuntimeException("Not a binary transaction file: " + path);
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryTransactionWriter.HEADER_SIZE);
+			if (header.getInt() != BinaryTransactionWriter.MAGIC) {
+				throw new RuntimeException("Not a binary transaction file: " + path);
+			}
+			short version = header.getShort();
+			if (version != BinaryTransactionWriter.VERSION) {
+				throw new RuntimeException("Unsupported binary transaction file version " + version + ": " + path);
+			}
+			header.getShort();
+			recordCount = header.getLong();
+			if (recordCount < 0) {
+				throw new RuntimeException("Binary transaction file is damaged: " + path);
+			}
+			// only a capacity hint, a damaged header must not allocate gigabytes
+			names = new ArrayList<>(Math.max(0, Math.min(header.getInt(), 1 << 16)));
+			header.getInt();
+			expectedChecksum = header.getLong();
+			mapWindow(BinaryTransactionWriter.HEADER_SIZE);
+		} catch (IOException | RuntimeException e) {
+			try {
+				channel.close();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new RuntimeException("Could not read " + path + ": " + e.getMessage(), e);
+		}
+		checksum = new CRC32();
+		nameScratch = new byte[BinaryTransactionWriter.MAX_NAME_LENGTH];
+		read = 0;
+		if (recordCount == 0) {
+			try {
+				finish();
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records announced by the header
+	 */
+	public long count() {
+		return recordCount;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return read < recordCount;
+	}
+
+	/**
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	@Override
+	public Transaction next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (window.remaining() < MAX_RECORD_SIZE && windowBase + window.limit() < fileSize) {
+			mapWindow(windowBase + window.position());
+		}
+		Transaction t;
+		try {
+			String sender = readName();
+			String receiver = readName();
+			t = new Transaction(sender, receiver, window.getInt(), window.getInt());
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException("Binary transaction file is truncated: " + path, e);
+		}
+		read++;
+		if (read == recordCount) {
+			finish();
+		}
+		return t;
+	}
+
+	/**
+	 * Passes every remaining transaction to the consumer
+	 *
+	 * @return the number of transactions read
+	 */
+	public long forEach(Consumer<Transaction> consumer) {
+		long start = read;
+		while (hasNext()) {
+			consumer.accept(next());
+		}
+		return read - start;
+	}
+
+	private String readName() {
+		int ref = window.getInt();
+		if (ref != BinaryTransactionWriter.NEW_NAME) {
+			if (ref < 0 || ref >= names.size()) {
+				throw new RuntimeException("Invalid name reference " + ref + " in " + path);
+			}
+			return names.get(ref);
+		}
+		int length = window.getShort() & 0xffff;
+		window.get(nameScratch, 0, length);
+		String name = new String(nameScratch, 0, length, StandardCharsets.UTF_8);
+		names.add(name);
+		return name;
+	}
+
+	// checks the body once the last announced record has been read
+	private void finish() {
+		long end = windowBase + window.position();
+		if (end != fileSize) {
+			throw new RuntimeException(
+					"Binary transaction file has " + (fileSize - end) + " bytes after its " + recordCount + " records: " + path);
+		}
+		checksumWindow();
+		if (checksum.getValue() != expectedChecksum) {
+			throw new RuntimeException("Checksum mismatch in binary transaction file: " + path);
+		}
+	}
+
+	// maps the next window starting at the given file position
+	private void mapWindow(long position) {
+		if (window != null) {
+			checksumWindow();
+		}
+		try {
+			long length = Math.min(WINDOW_SIZE, fileSize - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			windowBase = position;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + path + ": " + e.getMessage(), e);
+		}
+	}
+
+	// adds the bytes consumed from the current window to the checksum
+	private void checksumWindow() {
+		ByteBuffer consumed = window.duplicate();
+		consumed.flip();
+		checksum.update(consumed);
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not close " + path + ": " + e.getMessage(), e);
+		}
+	}
+}
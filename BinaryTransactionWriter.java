@@ -0,0 +1,218 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * - Streaming writer for the binary transaction batch format
+ * - Layout (big-endian):
+ *   header: int magic "TXB1", short version, short 0, long record count,
+ *   int name count, int 0, long CRC32 of the body
+ *   body: one record per transaction: sender ref, receiver ref, int amount,
+ *   int fee
+ * - Names are dictionary encoded: a ref is the int id of a name that was
+ *   already written, or NEW_NAME followed by an unsigned short byte length and
+ *   the UTF-8 bytes of a name, which then takes the next id
+ * - The header is written last (on close), once the count and checksum are
+ *   known. A writer that failed or was aborted deletes its file instead, so a
+ *   partial batch never carries a valid header
+ */
+public class BinaryTransactionWriter implements Closeable {
+	public static final int MAGIC = 0x54584231;
+	public static final short VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int NEW_NAME = -1;
+	public static final int MAX_NAME_LENGTH = 0xffff;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final CRC32 checksum;
+	private final AddressDictionary names;
+	private long count;
+	private boolean closed;
+	private boolean failed;
+
+	public BinaryTransactionWriter(String fileName) {
+		this(Paths.get(fileName));
+	}
+
+	public BinaryTransactionWriter(Path path) {
+		this.path = path;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			// the header is filled in on close
+			channel.position(HEADER_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not create " + path + ": " + e.getMessage(), e);
+		}
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		checksum = new CRC32();
+		names = new AddressDictionary();
+		count = 0;
+		closed = false;
+		failed = false;
+	}
+
+	/**
+	 * Appends one transaction record
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public void write(Transaction t) {
+		if (closed) {
+			throw new RuntimeException("The writer is closed");
+		}
+		writeName(t.getSender());
+		writeName(t.getReceiver());
+		ensureRoom(8);
+		buffer.putInt(t.getAmount());
+		buffer.putInt(t.getFee());
+		count++;
+	}
+
+	/**
+	 * @return the number of records written so far
+	 */
+	public long count() {
+		return count;
+	}
+
+	private void writeName(String name) {
+		int id = names.find(name);
+		if (id >= 0) {
+			ensureRoom(4);
+			buffer.putInt(id);
+			return;
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_NAME_LENGTH) {
+			throw new RuntimeException("Name is longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+		}
+		names.idOf(name);
+		ensureRoom(6 + bytes.length);
+		buffer.putInt(NEW_NAME);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void ensureRoom(int bytes) {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		buffer.flip();
+		checksum.update(buffer.array(), 0, buffer.limit());
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			failed = true;
+			throw new RuntimeException("Could not write transactions: " + e.getMessage(), e);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Flushes the remaining records and writes the header. If writing failed
+	 * earlier, the file is deleted instead
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		if (failed) {
+			abort();
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putShort(VERSION);
+			header.putShort((short) 0);
+			header.putLong(count);
+			header.putInt(names.size());
+			header.putInt(0);
+			header.putLong(checksum.getValue());
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.close();
+		} catch (IOException | RuntimeException e) {
+			discard(e);
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new RuntimeException("Could not write transactions: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Closes the writer without writing the header and deletes the file, e.g.
+	 * when the transactions being written turn out to be invalid
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		RuntimeException e = new RuntimeException("Could not delete the partial file " + path);
+		discard(e);
+		if (e.getSuppressed().length > 0) {
+			throw e;
+		}
+	}
+
+	// releases the channel and deletes the file, adding any failure to the cause
+	private void discard(Exception cause) {
+		try {
+			channel.close();
+		} catch (IOException suppressed) {
+			cause.addSuppressed(suppressed);
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException suppressed) {
+			cause.addSuppressed(suppressed);
+		}
+	}
+
+	/**
+	 * Converts a text transaction file into the binary format
+	 *
+	 * @return the number of transactions converted. If the text file cannot
+	 *         be parsed, no binary file is left behind
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public static long convert(String textFile, String binaryFile) {
+		try (BinaryTransactionWriter writer = new BinaryTransactionWriter(binaryFile)) {
+			try {
+				return new TransactionFileParser(textFile).forEach(writer::write);
+			} catch (RuntimeException | Error e) {
+				try {
+					writer.abort();
+				} catch (RuntimeException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+		}
+	}
+}
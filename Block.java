@@ -1,3 +1,4 @@
+import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
@@ -6,25 +7,100 @@ import java.util.Iterator;
     - Anything else you add must be private
     - Do not modify the provided signatures
     - Comparison between two blocks is based on the number of transactions they contain. The block that has more transactions is considered larger
+    - The Merkle tree is built lazily by the first call that needs it (root hash, proof, traversal) and kept until a
+      transaction is added. Concurrent first calls build it once
+    - Sealing also builds a Bloom filter over the leaf hashes, so lookups for transactions that are not in the block
+      are answered without touching the tree
 */
 
 public class Block implements Comparable<Block>, Iterable<Transaction>
 {
 	private SinglyLinkedList<Transaction> blockLinkedList;
-	private String rootHash;
+	private volatile Hash256 rootHash;
+	// the lowest-fee transaction, i.e. the tail of the list
+	private Transaction last;
+	private volatile MerkleTree merkleTree;
+	private volatile BloomFilter bloomFilter;
+	private double falsePositiveRate;
+	private final Object sealLock;
 	
     public Block()
     {
     	blockLinkedList = new SinglyLinkedList<Transaction>();
     	rootHash = null;
+    	last = null;
+    	merkleTree = null;
+    	bloomFilter = null;
+    	falsePositiveRate = BloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+    	sealLock = new Object();
+    }
+
+    // block read back from storage: kept in its stored order and sealed with its stored root
+    Block(Iterable<Transaction> blockOrder, Hash256 rootHash)
+    {
+    	this();
+    	for (Transaction t : blockOrder) {
+    		blockLinkedList.add(t);
+    		last = t;
+    	}
+    	this.rootHash = rootHash;
     }
 
     /**
-        TIME COMPLEXITY REQUIREMENT: O(1)
+        A transaction with a lower fee than every transaction in the block is appended to
+        the tail; anything else goes through the sorted insert
+
+        TIME COMPLEXITY REQUIREMENT: O(1) for fee-descending input
     */
     public void addTransaction(Transaction t)
     {
-    	blockLinkedList.insert(t);
+    	invalidate();
+    	if (last == null || t.compareTo(last) < 0) {
+    		blockLinkedList.add(t);
+    		last = t;
+    	} else {
+    		blockLinkedList.insert(t);
+    	}
+    }
+
+    /**
+        Bulk version of addTransaction: the block ends up exactly as if addTransaction had
+        been called for each transaction in order. Runs of equal fees in fee-descending
+        input are appended in reverse, which is where the sorted insert would put them,
+        so already ordered input never walks the list
+
+        TIME COMPLEXITY REQUIREMENT: O(N) for fee-descending input
+    */
+    public void addTransactions(Iterable<Transaction> ordered)
+    {
+    	invalidate();
+    	ArrayList<Transaction> run = new ArrayList<>();
+    	for (Transaction t : ordered) {
+    		if (!run.isEmpty() && t.compareTo(run.get(0)) != 0) {
+    			appendRun(run);
+    			run.clear();
+    		}
+    		run.add(t);
+    	}
+    	appendRun(run);
+    }
+
+    // appends a run of equal-fee transactions, newest first
+    private void appendRun(ArrayList<Transaction> run)
+    {
+    	if (run.isEmpty()) {
+    		return;
+    	}
+    	if (last == null || run.get(0).compareTo(last) < 0) {
+    		for (int i = run.size() - 1; i >= 0; i--) {
+    			blockLinkedList.add(run.get(i));
+    		}
+    		last = run.get(0);
+    	} else {
+    		for (Transaction t : run) {
+    			addTransaction(t);
+    		}
+    	}
     }
 
     /**
@@ -36,17 +112,128 @@ public class Block implements Comparable<Block>, Iterable<Transaction>
     }
 
     /**
-        TIME COMPLEXITY REQUIREMENT: O(1)
+        Seals the block on first use: builds the Merkle tree if no root hash is known yet.
+        Null only for an empty block
+
+        TIME COMPLEXITY REQUIREMENT: O(1) once sealed, O(N) for the first call
     */
-    public String getRootHash()
+    public Hash256 getRootHash()
+    {
+    	Hash256 hash = rootHash;
+    	if (hash == null && numOfTransactions() > 0) {
+    		merkleTree();
+    		hash = rootHash;
+    	}
+    	return hash;
+    }
+
+    /**
+        @return the Merkle tree of the block, built on the first call and cached until a
+        transaction is added. Threads that ask at the same time wait for a single build
+
+        TIME COMPLEXITY REQUIREMENT: O(1) once built, O(N) for the first call
+    */
+    public MerkleTree merkleTree()
+    {
+    	MerkleTree tree = merkleTree;
+    	if (tree == null) {
+    		synchronized (sealLock) {
+    			tree = merkleTree;
+    			if (tree == null) {
+    				if (numOfTransactions() == 0) {
+    					throw new RuntimeException("An empty block has no Merkle tree");
+    				}
+    				// the constructor sets the root hash of this block
+    				tree = new MerkleTree(this);
+    				merkleTree = tree;
+    				if (bloomFilter == null) {
+    					bloomFilter = buildBloomFilter();
+    				}
+    			}
+    		}
+    	}
+    	return tree;
+    }
+
+    /**
+        @return the proof of the transaction from the cached Merkle tree, empty if the
+        transaction is not in the block
+
+        TIME COMPLEXITY REQUIREMENT: O(logN) once the tree is built
+    */
+    public SinglyLinkedList<Hash256> extractProof(Transaction t)
+    {
+    	if (!mightContain(t)) {
+    		return new SinglyLinkedList<>();
+    	}
+    	return merkleTree().extractProof(t);
+    }
+
+    /**
+        @return false if the transaction is certainly not in the block, true if it may be. A block
+        sealed without a tree (e.g. read back from a BlockStore) builds its filter on the first call
+
+        TIME COMPLEXITY REQUIREMENT: O(1) once sealed
+    */
+    public boolean mightContain(Transaction t)
+    {
+    	if (numOfTransactions() == 0) {
+    		return false;
+    	}
+    	BloomFilter filter = bloomFilter;
+    	if (filter == null) {
+    		synchronized (sealLock) {
+    			filter = bloomFilter;
+    			if (filter == null) {
+    				filter = buildBloomFilter();
+    				bloomFilter = filter;
+    			}
+    		}
+    	}
+    	return filter.mightContain(t.leafHash());
+    }
+
+    /**
+        Sets the false-positive rate of the Bloom filter built when the block is sealed, 1% by default.
+        Lower rates skip more absent lookups and take more bits per transaction
+    */
+    public void setFalsePositiveRate(double rate)
+    {
+    	if (!(rate > 0 && rate < 1)) {
+    		throw new RuntimeException("The false-positive rate must be between 0 and 1: " + rate);
+    	}
+    	synchronized (sealLock) {
+    		falsePositiveRate = rate;
+    		bloomFilter = null;
+    	}
+    }
+
+    // callers hold sealLock
+    private BloomFilter buildBloomFilter()
+    {
+    	BloomFilter filter = new BloomFilter(numOfTransactions(), falsePositiveRate);
+    	for (Transaction t : blockLinkedList) {
+    		filter.add(t.leafHash());
+    	}
+    	return filter;
+    }
+
+    // a new transaction changes the tree, drop the cached one and its root
+    private void invalidate()
     {
-    	return rootHash;
+    	if (merkleTree != null || rootHash != null || bloomFilter != null) {
+    		synchronized (sealLock) {
+    			merkleTree = null;
+    			rootHash = null;
+    			bloomFilter = null;
+    		}
+    	}
     }
 
     /**
         TIME COMPLEXITY REQUIREMENT: O(1)
     */
-    public void setRootHash(String hashCode)
+    public void setRootHash(Hash256 hashCode)
     {
     	rootHash = hashCode;
     }
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+
+/**
+ * - Plans block boundaries from a fee-ordered snapshot of the transactions
+ * - The snapshot is an array plus the prefix sums of its fees; for
+ * non-negative fees each block end is found by binary search, so a plan costs
+ * O(B logN) for B blocks and the chain can be re-planned for any threshold
+ * without touching the transactions again
+ * - build() creates all the blocks of a plan in parallel
+ * - The blocks are exactly the ones the Blockchain constructor packs from the
+ * same queue
+ */
+public class BlockPlanner {
+	private final Transaction[] transactions;
+	// prefixFees[i] is the sum of the fees of the first i transactions
+	private final long[] prefixFees;
+	private final boolean monotone;
+
+	/**
+	 * Snapshots the queue in priority order without dequeuing anything
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(NlogN)
+	 */
+	public BlockPlanner(PriorityLine<Transaction> queue) {
+		this(queue.iterator());
+	}
+
+	/**
+	 * Snapshots a stream that already comes in fee-descending order
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public BlockPlanner(Iterator<Transaction> feeOrdered) {
+		ArrayList<Transaction> snapshot = new ArrayList<>();
+		while (feeOrdered.hasNext()) {
+			snapshot.add(feeOrdered.next());
+		}
+		transactions = snapshot.toArray(new Transaction[0]);
+		prefixFees = new long[transactions.length + 1];
+		boolean nonNegative = true;
+		for (int i = 0; i < transactions.length; i++) {
+			int fee = transactions[i].getFee();
+			nonNegative &= fee >= 0;
+			prefixFees[i + 1] = prefixFees[i] + fee;
+		}
+		monotone = nonNegative;
+	}
+
+	/**
+	 * @return the number of transactions in the snapshot
+	 */
+	public int size() {
+		return transactions.length;
+	}
+
+	/**
+	 * @return the start index of every block followed by size(), so block b
+	 *         holds the transactions [result[b], result[b + 1])
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(B logN) for B blocks
+	 */
+	public int[] boundaries(int threshold) {
+		if (threshold < 1) {
+			// the packing loop never ends for such thresholds
+			throw new RuntimeException("The fee threshold must be positive");
+		}
+		int[] result = new int[16];
+		int count = 0;
+		int start = 0;
+		while (start < transactions.length) {
+			if (count == result.length) {
+				result = Arrays.copyOf(result, 2 * count);
+			}
+			result[count++] = start;
+			start = monotone ? searchEnd(start, threshold) : scanEnd(start, threshold);
+		}
+		if (count == result.length) {
+			result = Arrays.copyOf(result, count + 1);
+		}
+		result[count++] = transactions.length;
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Builds the blocks of the plan for the threshold, in parallel
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(B logN + N) work
+	 */
+	public Blockchain build(int threshold) {
+		int[] bounds = boundaries(threshold);
+		Block[] blocks = new Block[bounds.length - 1];
+		IntStream.range(0, blocks.length).parallel().forEach(b -> {
+			Block block = new Block();
+			block.addTransactions(Arrays.asList(transactions).subList(bounds[b], bounds[b + 1]));
+			blocks[b] = block;
+		});
+		return new Blockchain(blocks);
+	}
+
+	// first end such that the fees of [start, end) reach the threshold, or the size
+	private int searchEnd(int start, int threshold) {
+		long target = prefixFees[start] + threshold;
+		int low = start + 1;
+		int high = transactions.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (prefixFees[mid] >= target) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	// negative fees break the prefix order, fall back to the packing loop itself
+	private int scanEnd(int start, int threshold) {
+		int cummulativeFees = 0;
+		int end = start;
+		while (end < transactions.length && cummulativeFees < threshold) {
+			cummulativeFees += transactions[end++].getFee();
+		}
+		return end;
+	}
+}
@@ -0,0 +1,548 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * - Persistent, append-only store of sealed blocks
+ * - Blocks are appended to a log split into segment files in one directory
+ * (segment-00000000.log, ...). Every segment is memory-mapped: appends are
+ * written into the mapped pages and blocks are decoded straight from them
+ * - Layout (big-endian):
+ *   segment header: int magic "BLS1", int version
+ *   block record: int body length, int CRC32 of the body, then the body:
+ *   32-byte root hash, int transaction count, and per transaction the sender
+ *   and receiver (unsigned short UTF-8 length and bytes), int amount, int fee
+ *   A body length of 0 marks the end of a segment
+ * - An offset index (segment and position of every block) is kept in memory.
+ * Opening a store rebuilds it by hopping from record header to record
+ * header, so no transaction is decoded until a block is read
+ * - A segment is forced to disk before the next one is started, so only the
+ * last segment can hold records that never became durable. Mapped pages
+ * reach the disk in any order, so on open every record of the last segment
+ * is checked against its CRC and the log is cut at the first record that
+ * fails: that record and everything after it are dropped. A last segment
+ * whose header never fully reached the disk is started afresh
+ * - Every read (block, root hash, transaction count) checks the CRC of the
+ * record first
+ * - Appends become durable on flush() or close()
+ * - Blocks may be read from several threads at once, but not while a block
+ * is being appended
+ */
+public class BlockStore implements Iterable<Block>, Closeable {
+	public static final int MAGIC = 0x424c5331;
+	public static final int VERSION = 1;
+	public static final int SEGMENT_HEADER_SIZE = 8;
+	public static final int RECORD_HEADER_SIZE = 8;
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+	public static final int MAX_NAME_LENGTH = 0xffff;
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ArrayList<FileChannel> channels;
+	private final ArrayList<MappedByteBuffer> segments;
+	// where every block starts: segment number and position of its record
+	private int[] blockSegments;
+	private int[] blockPositions;
+	private int numOfBlocks;
+	// first free position in the last segment
+	private int tail;
+	// decoded names and the buffer they are read into, guarded by addresses
+	private final AddressDictionary addresses;
+	private byte[] nameScratch;
+	private boolean closed;
+
+	/**
+	 * Opens the store in the directory, creating it if needed
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(B) for B stored blocks
+	 */
+	public static BlockStore open(String directory) {
+		return open(Paths.get(directory), DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize is the size of a segment file; a block larger than that
+	 *                    gets a segment of its own
+	 */
+	public static BlockStore open(Path directory, int segmentSize) {
+		if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+			throw new RuntimeException("The segment size is too small: " + segmentSize);
+		}
+		return new BlockStore(directory, segmentSize);
+	}
+
+	private BlockStore(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.channels = new ArrayList<>();
+		this.segments = new ArrayList<>();
+		this.blockSegments = new int[16];
+		this.blockPositions = new int[16];
+		this.numOfBlocks = 0;
+		this.addresses = new AddressDictionary();
+		this.nameScratch = new byte[64];
+		this.closed = false;
+		try {
+			Files.createDirectories(directory);
+			int existing = 0;
+			while (Files.exists(segmentPath(existing))) {
+				existing++;
+			}
+			for (int s = 0; s < existing; s++) {
+				boolean last = s == existing - 1;
+				if (last && Files.size(segmentPath(s)) < SEGMENT_HEADER_SIZE + 4) {
+					// a crash right after creating the segment left it shorter than its header, start it afresh
+					mapSegment(s, segmentSize);
+					initSegment(segments.get(s));
+					segments.get(s).force();
+				} else {
+					mapSegment(s, 0);
+				}
+				indexSegment(s, last);
+			}
+			if (segments.isEmpty()) {
+				newSegment(0);
+			}
+		} catch (IOException | RuntimeException e) {
+			closeChannels(e);
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new RuntimeException("Could not open block store " + directory + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Appends a block, sealing it first if it is not sealed yet
+	 *
+	 * @return the number of the block in the store, starting at 0
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N) for a block of N transactions
+	 */
+	public int append(Block block) {
+		checkOpen();
+		if (block.numOfTransactions() == 0) {
+			throw new RuntimeException("An empty block cannot be stored");
+		}
+		Hash256 rootHash = block.getRootHash();
+		ByteBuffer body = encode(block, rootHash);
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, body.limit());
+		int recordSize = RECORD_HEADER_SIZE + body.limit();
+		// keep room for the end marker after the record
+		if ((long) tail + recordSize + 4 > segments.get(segments.size() - 1).capacity()) {
+			newSegment(recordSize + 4);
+		}
+		int segment = segments.size() - 1;
+		MappedByteBuffer mapped = segments.get(segment);
+		// the body goes first, the length last, so a torn record reads as the end
+		mapped.putInt(tail + 4, (int) crc.getValue());
+		mapped.put(tail + RECORD_HEADER_SIZE, body.array(), 0, body.limit());
+		mapped.putInt(tail + recordSize, 0);
+		mapped.putInt(tail, body.limit());
+		addToIndex(segment, tail);
+		tail += recordSize;
+		return numOfBlocks - 1;
+	}
+
+	/**
+	 * Appends every block of the chain in order
+	 */
+	public void appendAll(Iterable<Block> blocks) {
+		for (Block block : blocks) {
+			append(block);
+		}
+	}
+
+	/**
+	 * @return the number of stored blocks
+	 */
+	public int numOfBlocks() {
+		return numOfBlocks;
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public int numOfSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * @return the stored root hash of the block, without decoding its
+	 *         transactions
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(S) for a record of S bytes, which
+	 *         is checksummed
+	 */
+	public Hash256 rootHash(int index) {
+		ByteBuffer body = body(index);
+		byte[] digest = new byte[HashEngine.DIGEST_LENGTH];
+		body.get(0, digest);
+		return Hash256.of(digest, 0);
+	}
+
+	/**
+	 * @return the stored transaction count of the block, without decoding its
+	 *         transactions
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(S) for a record of S bytes, which
+	 *         is checksummed
+	 */
+	public int numOfTransactions(int index) {
+		return body(index).getInt(HashEngine.DIGEST_LENGTH);
+	}
+
+	/**
+	 * @return the block, decoded from the mapped segment. It keeps its stored
+	 *         order and is already sealed with its stored root hash
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N) for a block of N transactions
+	 */
+	public Block block(int index) {
+		ByteBuffer body = body(index);
+		int length = body.limit();
+		byte[] digest = new byte[HashEngine.DIGEST_LENGTH];
+		body.get(digest);
+		int count = body.getInt();
+		ArrayList<Transaction> transactions = new ArrayList<>(Math.max(0, Math.min(count, length / 12)));
+		try {
+			for (int i = 0; i < count; i++) {
+				String sender = readName(body);
+				String receiver = readName(body);
+				transactions.add(new Transaction(sender, receiver, body.getInt(), body.getInt()));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException("Block " + index + " of " + directory + " is truncated", e);
+		}
+		return new Block(transactions, Hash256.of(digest, 0));
+	}
+
+	/**
+	 * @return the Merkle leaf hashes of the block's transactions in stored
+	 *         order, the same as their leafHash(). They are hashed from the
+	 *         stored bytes: no Transaction is decoded
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N) for a block of N transactions
+	 */
+	public Hash256[] leafHashes(int index) {
+		ByteBuffer body = body(index);
+		body.position(HashEngine.DIGEST_LENGTH);
+		int count = body.getInt();
+		if (count < 0 || count > body.remaining() / 12) {
+			throw new RuntimeException("Block " + index + " of " + directory + " is truncated");
+		}
+		Hash256[] hashes = new Hash256[count];
+		HashEngine engine = HashEngine.get();
+		byte[] encoding = new byte[64];
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] sender = readNameBytes(body);
+				byte[] receiver = readNameBytes(body);
+				int amount = body.getInt();
+				int fee = body.getInt();
+				int length = Transaction.encodedLength(sender, receiver, amount, fee);
+				if (encoding.length < length) {
+					encoding = new byte[Math.max(length, 2 * encoding.length)];
+				}
+				Transaction.encode(sender, receiver, amount, fee, encoding, 0);
+				hashes[i] = engine.hash(encoding, 0, length);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException("Block " + index + " of " + directory + " is truncated", e);
+		}
+		return hashes;
+	}
+
+	/**
+	 * @return the stored blocks in order, each decoded when the iterator
+	 *         reaches it
+	 */
+	@Override
+	public Iterator<Block> iterator() {
+		return new Iterator<Block>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < numOfBlocks;
+			}
+
+			@Override
+			public Block next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return block(next++);
+			}
+		};
+	}
+
+	/**
+	 * @return a chain backed by this store: iterating it reads the blocks from
+	 *         the mapped segments, nothing is loaded up front
+	 */
+	public Blockchain blockchain() {
+		return new Blockchain(this);
+	}
+
+	/**
+	 * Forces the appended blocks to disk
+	 */
+	public void flush() {
+		checkOpen();
+		segments.get(segments.size() - 1).force();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		flush();
+		closed = true;
+		closeChannels(null);
+	}
+
+	private ByteBuffer encode(Block block, Hash256 rootHash) {
+		ArrayList<byte[]> names = new ArrayList<>(2 * block.numOfTransactions());
+		long size = HashEngine.DIGEST_LENGTH + 4;
+		for (Transaction t : block) {
+			byte[] sender = encodeName(t.getSender());
+			byte[] receiver = encodeName(t.getReceiver());
+			names.add(sender);
+			names.add(receiver);
+			size += 4 + sender.length + receiver.length + 8;
+		}
+		if (size + RECORD_HEADER_SIZE + SEGMENT_HEADER_SIZE + 4 > Integer.MAX_VALUE) {
+			throw new RuntimeException("Block is too large to be stored: " + block.numOfTransactions() + " transactions");
+		}
+		ByteBuffer body = ByteBuffer.allocate((int) size);
+		rootHash.writeTo(body.array(), 0);
+		body.position(HashEngine.DIGEST_LENGTH);
+		body.putInt(block.numOfTransactions());
+		int i = 0;
+		for (Transaction t : block) {
+			byte[] sender = names.get(i++);
+			byte[] receiver = names.get(i++);
+			body.putShort((short) sender.length).put(sender);
+			body.putShort((short) receiver.length).put(receiver);
+			body.putInt(t.getAmount()).putInt(t.getFee());
+		}
+		body.flip();
+		return body;
+	}
+
+	private static byte[] encodeName(String name) {
+		if (name == null) {
+			throw new RuntimeException("A stored transaction needs a sender and a receiver");
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_NAME_LENGTH) {
+			throw new RuntimeException("Name is longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+		}
+		return bytes;
+	}
+
+	// names repeat across blocks, intern them instead of decoding a copy each time
+	private String readName(ByteBuffer body) {
+		int id = readNameId(body);
+		synchronized (addresses) {
+			return addresses.name(id);
+		}
+	}
+
+	// the interned UTF-8 bytes of the name, shared: they must not be modified
+	private byte[] readNameBytes(ByteBuffer body) {
+		synchronized (addresses) {
+			return addresses.encoding(readNameId(body));
+		}
+	}
+
+	private int readNameId(ByteBuffer body) {
+		int length = body.getShort() & 0xffff;
+		synchronized (addresses) {
+			if (length > nameScratch.length) {
+				nameScratch = new byte[Math.max(length, 2 * nameScratch.length)];
+			}
+			body.get(nameScratch, 0, length);
+			return addresses.idOf(nameScratch, 0, length);
+		}
+	}
+
+	// view of the body of a block, once its checksum has been verified
+	private ByteBuffer body(int index) {
+		checkOpen();
+		if (index < 0 || index >= numOfBlocks) {
+			throw new IndexOutOfBoundsException("Block " + index + " out of bounds for " + numOfBlocks + " blocks");
+		}
+		MappedByteBuffer segment = segments.get(blockSegments[index]);
+		int position = blockPositions[index];
+		int length = segment.getInt(position);
+		if (length <= 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE
+				|| !intact(segment, position, length)) {
+			throw new RuntimeException("Checksum mismatch in block " + index + " of " + directory);
+		}
+		return segment.slice(position + RECORD_HEADER_SIZE, length);
+	}
+
+	// hops over the records of a segment; the records of the last segment are
+	// verified too, and the log ends at the first one that is torn
+	private void indexSegment(int s, boolean last) {
+		MappedByteBuffer segment = segments.get(s);
+		if (last && segment.getInt(0) == 0 && segment.getInt(4) == 0) {
+			// created just before a crash, its header never reached the disk
+			initSegment(segment);
+			segment.force();
+			return;
+		}
+		if (segment.getInt(0) != MAGIC) {
+			throw new RuntimeException("Not a block store segment: " + segmentPath(s));
+		}
+		if (segment.getInt(4) != VERSION) {
+			throw new RuntimeException("Unsupported block store version " + segment.getInt(4) + ": " + segmentPath(s));
+		}
+		int position = SEGMENT_HEADER_SIZE;
+		while (position + RECORD_HEADER_SIZE <= segment.capacity()) {
+			int length = segment.getInt(position);
+			if (length <= 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+				break;
+			}
+			if (last && !intact(segment, position, length)) {
+				break;
+			}
+			addToIndex(s, position);
+			position += RECORD_HEADER_SIZE + length;
+		}
+		tail = position;
+		if (last && tail + 4 <= segment.capacity() && segment.getInt(tail) != 0) {
+			// the appends from the torn record on did not complete, drop them for good
+			segment.putInt(tail, 0);
+			segment.force();
+		}
+	}
+
+	private static boolean intact(MappedByteBuffer segment, int position, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(segment.slice(position + RECORD_HEADER_SIZE, length));
+		return (int) crc.getValue() == segment.getInt(position + 4);
+	}
+
+	private void addToIndex(int segment, int position) {
+		if (numOfBlocks == blockSegments.length) {
+			blockSegments = Arrays.copyOf(blockSegments, 2 * numOfBlocks);
+			blockPositions = Arrays.copyOf(blockPositions, 2 * numOfBlocks);
+		}
+		blockSegments[numOfBlocks] = segment;
+		blockPositions[numOfBlocks] = position;
+		numOfBlocks++;
+	}
+
+	// starts a new segment with room for at least minimumRoom bytes of records
+	private void newSegment(int minimumRoom) {
+		if (!segments.isEmpty()) {
+			segments.get(segments.size() - 1).force();
+		}
+		int s = segments.size();
+		try {
+			mapSegment(s, Math.max(segmentSize, SEGMENT_HEADER_SIZE + minimumRoom));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not create " + segmentPath(s) + ": " + e.getMessage(), e);
+		}
+		initSegment(segments.get(s));
+	}
+
+	private void initSegment(MappedByteBuffer segment) {
+		segment.putInt(0, MAGIC);
+		segment.putInt(4, VERSION);
+		segment.putInt(SEGMENT_HEADER_SIZE, 0);
+		tail = SEGMENT_HEADER_SIZE;
+	}
+
+	// maps a segment read-write; size 0 maps an existing segment as it is
+	private void mapSegment(int s, int size) throws IOException {
+		FileChannel channel = FileChannel.open(segmentPath(s), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channels.add(channel);
+		long length = size > 0 ? size : channel.size();
+		if (length < SEGMENT_HEADER_SIZE || length > Integer.MAX_VALUE) {
+			throw new RuntimeException("Not a block store segment: " + segmentPath(s));
+		}
+		segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+	}
+
+	private Path segmentPath(int s) {
+		return directory.resolve(String.format("segment-%08d.log", s));
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new RuntimeException("The block store is closed");
+		}
+	}
+
+	private void closeChannels(Exception failure) {
+		for (FileChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (failure != null) {
+					failure.addSuppressed(e);
+				} else {
+					throw new RuntimeException("Could not close " + directory + ": " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Packs the transaction file (first argument) with the threshold (second
+	 * argument) and appends the chain to the store in the directory given as
+	 * third argument, then reopens the store and checks that the appended
+	 * blocks read back with the same transactions and root hashes
+	 */
+	public static void main(String[] args) {
+		String file = args[0];
+		int threshold = Integer.parseInt(args[1]);
+		String directory = args[2];
+
+		long begin = System.nanoTime();
+		Blockchain chain = new Blockchain(Utilities.loadTransactions(file), threshold);
+		int first;
+		try (BlockStore store = open(directory)) {
+			first = store.numOfBlocks();
+			store.appendAll(chain);
+		}
+		long packed = System.nanoTime() - begin;
+
+		begin = System.nanoTime();
+		int blocks = 0;
+		try (BlockStore store = open(directory)) {
+			for (Block original : chain) {
+				Block block = store.block(first + blocks);
+				Hash256 stored = block.getRootHash();
+				// rebuilding the tree proves the stored order is the original one
+				new MerkleTree(block);
+				if (!stored.equals(original.getRootHash()) || !block.getRootHash().equals(stored)) {
+					throw new RuntimeException("Block " + (first + blocks) + " differs after reopening");
+				}
+				blocks++;
+			}
+			System.out.println(String.format("blocks: %d of %d  segments: %d  pack and store: %d ms  reopen and read: %d ms",
+					blocks, store.numOfBlocks(), store.numOfSegments(), packed / 1000000, (System.nanoTime() - begin) / 1000000));
+		}
+	}
+}
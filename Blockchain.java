@@ -1,4 +1,13 @@
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * - The class represents the entire blockchain - You must implement all the
@@ -8,7 +17,20 @@ import java.util.Iterator;
  */
 
 public class Blockchain implements Iterable<Block> {
-	private SinglyLinkedList<Block> blockchainLinkedList;
+	// blocks by number, so a located block is reached in O(1)
+	private ArrayList<Block> blocks;
+	// set for a chain reopened from disk, whose blocks are read as they are iterated
+	private BlockStore store;
+	// the stored blocks decoded by get(), with their Merkle trees, least recently used first
+	private LinkedHashMap<Integer, Block> decoded;
+	// built on the first lookup, then extended with every appended block; lookups
+	// may come from several threads, so the index and loadedBlocks are guarded by indexLock
+	private TransactionLocator locator;
+	// the blocks covered by a loaded index, whose locations are checked before use
+	private int loadedBlocks;
+	private final Object indexLock = new Object();
+
+	private static final int DECODED_BLOCKS = 64;
 
 	/**
 	 * The concstructor takes a priority queue and creates the linked list of blocks
@@ -20,27 +42,283 @@ public class Blockchain implements Iterable<Block> {
 	 *                  TIME COMPLEXITY REQUIREMENT: O(N)
 	 */
 	public Blockchain(PriorityLine<Transaction> queue, int threshold) {
-		blockchainLinkedList = new SinglyLinkedList<Block>();
+		this(drain(queue), threshold);
+	}
+
+	/**
+	 * Same packing as Blockchain(queue, threshold), but every block is handed
+	 * to the sealers as soon as it is packed. A worker builds its MerkleTree
+	 * (setting the root hash) while the next blocks are being packed
+	 *
+	 * @param sealers is the pool that builds the Merkle trees
+	 *
+	 *                The constructor returns once every block is sealed; the
+	 *                chain keeps the packing order
+	 */
+	public Blockchain(PriorityLine<Transaction> queue, int threshold, ExecutorService sealers) {
+		this(drain(queue), threshold, sealers);
+	}
+
+	/**
+	 * Packs a stream of transactions that already comes in fee-descending
+	 * order, e.g. an ExternalTransactionSorter, with the same threshold rule.
+	 * Transactions are consumed one at a time, nothing is buffered
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public Blockchain(Iterator<Transaction> feeOrdered, int threshold) {
+		this(feeOrdered, threshold, null);
+	}
+
+	/**
+	 * Packs a fee-ordered stream and seals the blocks on the given pool while
+	 * packing continues, see Blockchain(queue, threshold, sealers)
+	 *
+	 * @param sealers is the pool that builds the Merkle trees, null leaves the
+	 *                blocks unsealed
+	 */
+	public Blockchain(Iterator<Transaction> feeOrdered, int threshold, ExecutorService sealers) {
+		blocks = new ArrayList<>();
+		ArrayList<Future<MerkleTree>> seals = new ArrayList<>();
+		ArrayList<Transaction> packed = new ArrayList<>();
 		int cummulativeFees = 0;
 
-		while (queue.size() != 0) {
+		while (feeOrdered.hasNext()) {
 			cummulativeFees = 0;
-			Block newBlock = new Block();
+			packed.clear();
 
 			while (cummulativeFees < threshold) {
-				cummulativeFees += queue.peek().getFee();
-				newBlock.addTransaction(queue.dequeue());
-				if(queue.isEmpty()){
+				Transaction t = feeOrdered.next();
+				cummulativeFees += t.getFee();
+				packed.add(t);
+				if(!feeOrdered.hasNext()){
 					break;
 				}
 			}
-			blockchainLinkedList.add(newBlock);
+			// the stream is fee-ordered, so the bulk add appends in O(1) each
+			Block newBlock = new Block();
+			newBlock.addTransactions(packed);
+			blocks.add(newBlock);
+			if (sealers != null) {
+				seals.add(sealers.submit(newBlock::merkleTree));
+			}
+		}
+		awaitAll(seals);
+	}
+
+	/**
+	 * Packs the transactions currently in the mempool, using the same
+	 * threshold rule as the PriorityLine constructor. Transactions enqueued by
+	 * producers while the chain is built may or may not be included
+	 */
+	public Blockchain(ConcurrentMempool mempool, int threshold) {
+		blocks = new ArrayList<>();
+		Block newBlock = mempool.drainUntilFeeThreshold(threshold);
+		while (newBlock != null) {
+			blocks.add(newBlock);
+			newBlock = mempool.drainUntilFeeThreshold(threshold);
+		}
+	}
+
+	// chain of already packed blocks, in order
+	Blockchain(Block[] packed) {
+		blocks = new ArrayList<>(Arrays.asList(packed));
+	}
+
+	// chain backed by a store, nothing is read up front
+	Blockchain(BlockStore store) {
+		this.store = store;
+		this.decoded = new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+				return size() > DECODED_BLOCKS;
+			}
+		};
+	}
+
+	/**
+	 * Adds a block at the end of the chain; a chain opened from a BlockStore
+	 * appends it to the store
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1) amortized, O(N) for a stored chain
+	 */
+	public void append(Block block) {
+		if (store != null) {
+			store.append(block);
+		} else {
+			blocks.add(block);
+		}
+	}
+
+	/**
+	 * @return the block with the given number, counting from 0
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(1), O(N) for a stored chain the
+	 *         first time a block is read: the recently read blocks stay
+	 *         decoded, with their Merkle trees once built
+	 */
+	public Block get(int index) {
+		if (store == null) {
+			return blocks.get(index);
+		}
+		synchronized (decoded) {
+			Block block = decoded.get(index);
+			if (block == null) {
+				block = store.block(index);
+				decoded.put(index, block);
+			}
+			return block;
 		}
 	}
 
+	/**
+	 * @return the number of blocks
+	 */
+	public int size() {
+		return store != null ? store.numOfBlocks() : blocks.size();
+	}
+
+	/**
+	 * @return the number of the block holding the transaction, or -1 if no
+	 *         block does. The first lookup indexes the chain, later ones only
+	 *         index the blocks appended since; a stored chain is indexed from
+	 *         the stored bytes without decoding its blocks
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(1) expected once indexed, plus
+	 *         O(logN) to check a location that comes from a loaded index
+	 */
+	public int blockOf(Transaction t) {
+		long location;
+		boolean loaded;
+		synchronized (indexLock) {
+			location = locator().locate(t);
+			loaded = location >= 0 && TransactionLocator.blockOf(location) < loadedBlocks;
+		}
+		if (location < 0) {
+			return -1;
+		}
+		if (loaded) {
+			check(location, t);
+		}
+		return TransactionLocator.blockOf(location);
+	}
+
+	/**
+	 * @return the inclusion proof of the transaction in its block, empty if the
+	 *         transaction is in no block. Verify it against the root hash of
+	 *         get(blockOf(t))
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(logN) once indexed and the block
+	 *         is sealed, whatever the length of the chain
+	 */
+	public SinglyLinkedList<Hash256> extractProof(Transaction t) {
+		long location;
+		synchronized (indexLock) {
+			location = locator().locate(t);
+		}
+		if (location < 0) {
+			return new SinglyLinkedList<>();
+		}
+		return check(location, t).extractProof(TransactionLocator.leafOf(location));
+	}
+
+	/**
+	 * Writes the transaction index of the chain, building it first if needed
+	 */
+	public void saveIndex(String fileName) {
+		synchronized (indexLock) {
+			locator().save(Paths.get(fileName));
+		}
+	}
+
+	/**
+	 * Replaces the transaction index with one saved by saveIndex() for this
+	 * chain or a shorter prefix of it; blocks appended after the save are
+	 * indexed on the next lookup
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N) for the saved entries
+	 */
+	public void loadIndex(String fileName) {
+		TransactionLocator loaded = TransactionLocator.load(Paths.get(fileName));
+		if (loaded.numOfBlocks() > size()) {
+			throw new RuntimeException("The transaction index covers " + loaded.numOfBlocks() + " blocks, the chain has "
+					+ size());
+		}
+		for (int b = 0; b < loaded.numOfBlocks(); b++) {
+			int transactions = store != null ? store.numOfTransactions(b) : blocks.get(b).numOfTransactions();
+			if (loaded.blockSize(b) != transactions) {
+				throw new RuntimeException("The transaction index does not match block " + b);
+			}
+		}
+		synchronized (indexLock) {
+			locator = loaded;
+			loadedBlocks = loaded.numOfBlocks();
+		}
+	}
+
+	// indexes the blocks the locator has not seen yet; callers hold indexLock
+	private TransactionLocator locator() {
+		if (locator == null) {
+			locator = new TransactionLocator();
+		}
+		for (int b = locator.numOfBlocks(); b < size(); b++) {
+			if (store != null) {
+				locator.add(store.leafHashes(b));
+			} else {
+				locator.add(get(b));
+			}
+		}
+		return locator;
+	}
+
+	// a loaded index that does not match the chain must not name another leaf
+	private MerkleTree check(long location, Transaction t) {
+		Block block = get(TransactionLocator.blockOf(location));
+		int leaf = TransactionLocator.leafOf(location);
+		MerkleTree tree = block.merkleTree();
+		if (leaf >= block.numOfTransactions() || !tree.leafHash(leaf).equals(t.leafHash())) {
+			throw new RuntimeException("The transaction index does not match block " + TransactionLocator.blockOf(location));
+		}
+		return tree;
+	}
+
+	private static void awaitAll(ArrayList<Future<MerkleTree>> seals) {
+		try {
+			for (Future<MerkleTree> seal : seals) {
+				seal.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while sealing blocks", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Sealing a block failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	// dequeues lazily, so the queue is emptied exactly as the packing loop advances
+	private static Iterator<Transaction> drain(PriorityLine<Transaction> queue) {
+		return new Iterator<Transaction>() {
+			@Override
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public Transaction next() {
+				return queue.dequeue();
+			}
+		};
+	}
+
 	@Override
 	public Iterator<Block> iterator() {
-		return blockchainLinkedList.iterator();
+		if (store != null) {
+			return store.iterator();
+		}
+		// blocks cannot be removed, the index relies on their numbers
+		return Collections.unmodifiableList(blocks).iterator();
 	}
 
 }
@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+
+/**
+ * - Bloom filter over Hash256 keys: answers "definitely absent" or "maybe
+ * present" in O(k) for k hash functions, from a bit array of about
+ * 1.44 log2(1 / p) bits per key for a false-positive rate p
+ * - The keys are SHA-256 digests and already uniformly distributed, so the k
+ * bit positions come from double hashing over two words of the digest
+ * instead of hashing the key again
+ * - There are no false negatives
+ */
+public class BloomFilter {
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	private final long[] bits;
+	private final long numOfBits;
+	private final int numOfHashFunctions;
+	private int size;
+
+	/**
+	 * @param expectedKeys      is the number of keys the filter is sized for
+	 * @param falsePositiveRate is the chance that an absent key is reported as
+	 *                          present once expectedKeys keys are added
+	 */
+	public BloomFilter(int expectedKeys, double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new RuntimeException("The false-positive rate must be between 0 and 1: " + falsePositiveRate);
+		}
+		int keys = Math.max(1, expectedKeys);
+		double ln2 = Math.log(2);
+		long wanted = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (ln2 * ln2));
+		// whole words, at least one
+		long words = Math.max(1, Math.min((wanted + 63) / 64, Integer.MAX_VALUE - 8));
+		bits = new long[(int) words];
+		numOfBits = 64 * words;
+		numOfHashFunctions = (int) Math.max(1, Math.min(30, Math.round((double) numOfBits / keys * ln2)));
+		size = 0;
+	}
+
+	/**
+	 * TIME COMPLEXITY REQUIREMENT: O(k)
+	 */
+	public void add(Hash256 key) {
+		long hash = key.high();
+		long step = key.low() | 1;
+		for (int i = 0; i < numOfHashFunctions; i++) {
+			long bit = Long.remainderUnsigned(hash, numOfBits);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+			hash += step;
+		}
+		size++;
+	}
+
+	/**
+	 * @return false if the key was never added, true if it may have been
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(k)
+	 */
+	public boolean mightContain(Hash256 key) {
+		long hash = key.high();
+		long step = key.low() | 1;
+		for (int i = 0; i < numOfHashFunctions; i++) {
+			long bit = Long.remainderUnsigned(hash, numOfBits);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			hash += step;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of keys added
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long numOfBits() {
+		return numOfBits;
+	}
+
+	public int numOfHashFunctions() {
+		return numOfHashFunctions;
+	}
+
+	/**
+	 * @return the false-positive rate expected for the keys added so far
+	 */
+	public double expectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) numOfHashFunctions * size / numOfBits), numOfHashFunctions);
+	}
+
+	/**
+	 * Packs the transaction file (first argument) with the threshold (second
+	 * argument), seals every block, then looks up every transaction of the
+	 * file plus as many absent ones in every block and prints how many of the
+	 * absent lookups the filters let through
+	 */
+	public static void main(String[] args) {
+		Blockchain chain = new Blockchain(Utilities.loadTransactions(args[0]), Integer.parseInt(args[1]));
+		ArrayList<Transaction> present = new ArrayList<>();
+		for (Block block : chain) {
+			block.getRootHash();
+			for (Transaction t : block) {
+				present.add(t);
+			}
+		}
+		long lookups = 0;
+		long falsePositives = 0;
+		long proofs = 0;
+		long begin = System.nanoTime();
+		for (Transaction t : present) {
+			// same names and amount, a fee no transaction of the file has
+			Transaction absent = new Transaction(t.getSender(), t.getReceiver(), t.getAmount(), Integer.MIN_VALUE);
+			for (Block block : chain) {
+				lookups++;
+				if (block.mightContain(absent)) {
+					falsePositives++;
+				}
+				if (block.extractProof(t).size() > 0) {
+					proofs++;
+				}
+			}
+		}
+		System.out.println(String.format("lookups: %d  absent let through: %d (%.3f%%)  proofs found: %d  %d ms", lookups,
+				falsePositives, 100.0 * falsePositives / Math.max(1, lookups), proofs,
+				(System.nanoTime() - begin) / 1000000));
+	}
+}
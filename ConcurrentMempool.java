@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * - Thread-safe transaction mempool for several producers and a block builder
+ * - Transactions are spread over independent PriorityLine stripes, each with
+ * its own lock. A producer thread always uses the same stripe, so producers
+ * on different stripes never contend
+ * - Dequeuing locks every stripe (always in the same order) and takes the
+ * highest fee among the stripe heads. drainUntilFeeThreshold does that once
+ * for a whole block instead of once per transaction
+ * - Transactions with equal fees that were enqueued on different stripes have
+ * no defined relative order
+ */
+public class ConcurrentMempool {
+	private final PriorityLine<Transaction>[] stripes;
+	private final ReentrantLock[] locks;
+	private final AtomicInteger size;
+	private final AtomicLong pendingFees;
+	private final AtomicInteger nextStripe;
+	private final ThreadLocal<Integer> threadStripe;
+
+	public ConcurrentMempool() {
+		this(2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param numOfStripes is the number of independently locked queues; more
+	 *                     stripes mean less producer contention and a slightly
+	 *                     more expensive dequeue
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentMempool(int numOfStripes) {
+		if (numOfStripes < 1) {
+			throw new RuntimeException("A mempool needs at least one stripe");
+		}
+		stripes = (PriorityLine<Transaction>[]) new PriorityLine<?>[numOfStripes];
+		locks = new ReentrantLock[numOfStripes];
+		for (int i = 0; i < numOfStripes; i++) {
+			stripes[i] = new PriorityLine<>();
+			locks[i] = new ReentrantLock();
+		}
+		size = new AtomicInteger();
+		pendingFees = new AtomicLong();
+		nextStripe = new AtomicInteger();
+		threadStripe = ThreadLocal.withInitial(() -> Math.floorMod(nextStripe.getAndIncrement(), stripes.length));
+	}
+
+	/**
+	 * Adds a transaction to the stripe of the calling thread
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(logN)
+	 */
+	public void enqueue(Transaction t) {
+		int stripe = threadStripe.get();
+		locks[stripe].lock();
+		try {
+			stripes[stripe].enqueue(t);
+			// under the lock, so a drain never takes a transaction before it is counted
+			pendingFees.addAndGet(t.getFee());
+			size.incrementAndGet();
+		} finally {
+			locks[stripe].unlock();
+		}
+	}
+
+	/**
+	 * @return the highest-fee transaction, or null if the mempool is empty
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(S + logN) for S stripes
+	 */
+	public Transaction dequeue() {
+		lockAll();
+		try {
+			return takeBest();
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Removes the highest-fee transactions into a new block, stopping as soon as
+	 * their cumulative fee reaches the threshold or the mempool runs out. This
+	 * is the packing rule of the Blockchain constructor
+	 *
+	 * @return the block, or null if the mempool was empty
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(K (S + logN)) for a block of K
+	 *         transactions
+	 */
+	public Block drainUntilFeeThreshold(int threshold) {
+		ArrayList<Transaction> packed = drain(threshold);
+		if (packed.isEmpty()) {
+			return null;
+		}
+		Block block = new Block();
+		block.addTransactions(packed);
+		return block;
+	}
+
+	// the transactions of the next block, in the order they were dequeued
+	private ArrayList<Transaction> drain(int threshold) {
+		ArrayList<Transaction> packed = new ArrayList<>();
+		lockAll();
+		try {
+			int cummulativeFees = 0;
+			Transaction t = takeBest();
+			while (t != null) {
+				cummulativeFees += t.getFee();
+				packed.add(t);
+				if (cummulativeFees >= threshold) {
+					break;
+				}
+				t = takeBest();
+			}
+		} finally {
+			unlockAll();
+		}
+		return packed;
+	}
+
+	/**
+	 * @return the number of transactions waiting in the mempool
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the sum of the fees of the waiting transactions. A block builder
+	 *         can wait until this reaches its threshold before draining
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public long pendingFees() {
+		return pendingFees.get();
+	}
+
+	// callers hold every stripe lock
+	private Transaction takeBest() {
+		int best = -1;
+		for (int i = 0; i < stripes.length; i++) {
+			if (!stripes[i].isEmpty()
+					&& (best < 0 || stripes[i].peek().compareTo(stripes[best].peek()) > 0)) {
+				best = i;
+			}
+		}
+		if (best < 0) {
+			return null;
+		}
+		Transaction t = stripes[best].dequeue();
+		pendingFees.addAndGet(-t.getFee());
+		size.decrementAndGet();
+		return t;
+	}
+
+	private void lockAll() {
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+	}
+
+	private void unlockAll() {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+
+	/**
+	 * Contention stress run: for 1, 2, 4, ... producer threads (up to the first
+	 * argument, default 8), each producer enqueues the same number of
+	 * transactions while one builder thread drains blocks. Prints the
+	 * enqueue throughput and checks that every transaction came out exactly
+	 * once and that each drain dequeued in fee order
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int maxProducers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+		int threshold = 1000;
+		for (int producers = 1; producers <= maxProducers; producers *= 2) {
+			ConcurrentMempool mempool = new ConcurrentMempool();
+			CountDownLatch start = new CountDownLatch(1);
+			CountDownLatch done = new CountDownLatch(producers);
+			Thread[] threads = new Thread[producers];
+			for (int p = 0; p < producers; p++) {
+				int id = p;
+				threads[p] = new Thread(() -> {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					for (int i = 0; i < perProducer; i++) {
+						mempool.enqueue(new Transaction("sender" + id, "receiver" + i, i, (i * 31 + id) % 100));
+					}
+					done.countDown();
+				});
+				threads[p].start();
+			}
+			// transaction i of producer p has bit p * perProducer + i
+			BitSet seen = new BitSet(producers * perProducer);
+			long drained = 0;
+			boolean duplicated = false;
+			boolean ordered = true;
+			long begin = System.nanoTime();
+			start.countDown();
+			while (done.getCount() > 0 || !mempool.isEmpty()) {
+				ArrayList<Transaction> packed = mempool.drain(threshold);
+				if (packed.isEmpty()) {
+					Thread.onSpinWait();
+					continue;
+				}
+				// every stripe stays locked during a drain, so nothing can overtake its order
+				Transaction previous = null;
+				for (Transaction t : packed) {
+					ordered &= previous == null || previous.getFee() >= t.getFee();
+					previous = t;
+					int bit = Integer.parseInt(t.getSender().substring("sender".length())) * perProducer + t.getAmount();
+					duplicated |= seen.get(bit);
+					seen.set(bit);
+				}
+				drained += packed.size();
+			}
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			long expected = (long) producers * perProducer;
+			boolean complete = seen.cardinality() == expected;
+			System.out.println(String.format(
+					"producers: %d  enqueued: %d  drained: %d  duplicates: %b  all drained: %b  ordered: %b  %.0f tx/s",
+					producers, expected, drained, duplicated, complete, ordered, expected / seconds));
+			if (duplicated || !complete || !ordered) {
+				throw new RuntimeException("Mempool lost, duplicated or misordered transactions");
+			}
+		}
+	}
+}
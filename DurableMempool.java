@@ -0,0 +1,574 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * - Crash-safe transaction mempool: every accepted transaction is appended to
+ * a write-ahead log and forced to disk before it enters the PriorityLine, and
+ * reopening the log replays it into the queue
+ * - Group commit: a single writer thread collects the transactions that
+ * arrive while it is busy, waits at most maxLatency for more and at most
+ * maxBatchSize in total, then writes the batch with one fsync. Producers
+ * are acknowledged (their future completes) only after that fsync
+ * - Log layout (big-endian): int magic "WAL1", int version, then one frame
+ * per batch: int length and int CRC32 of the records, then the records. A
+ * record is a transaction: sender and receiver as unsigned short UTF-8
+ * length and bytes, int amount, int fee
+ * - A batch is written only after the previous one was forced, so a crash
+ * can only tear the last frame. Replay cuts a torn last frame off the log;
+ * a damaged frame anywhere else held acknowledged transactions and is
+ * reported instead
+ * - Creating the log and replacing it on checkpoint also force the
+ * directory, so neither the new file nor the rename can be lost
+ * - Dequeued transactions stay in the log until checkpoint(), which rewrites
+ * it with the transactions still waiting. Call it once the packed blocks
+ * are stored; a crash before that replays them again
+ * - All methods may be called from several threads
+ */
+public class DurableMempool implements Closeable {
+	public static final int MAGIC = 0x57414c31;
+	public static final int VERSION = 2;
+	public static final int HEADER_SIZE = 8;
+	public static final int FRAME_HEADER_SIZE = 8;
+	public static final int MAX_NAME_LENGTH = 0xffff;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 4096;
+	public static final long DEFAULT_MAX_LATENCY_MICROS = 1000;
+
+	private final Path path;
+	private final int maxBatchSize;
+	private final long maxLatencyNanos;
+	private final PriorityLine<Transaction> queue;
+	private final AddressDictionary addresses;
+	private final int replayed;
+	private FileChannel channel;
+
+	// transactions waiting for the writer, guarded by pendingLock
+	private final ArrayDeque<Pending> pending;
+	private final ReentrantLock pendingLock;
+	private final Condition arrived;
+	private boolean closed;
+	private IOException failure;
+	// held while a batch is written or the log is rewritten
+	private final Object logLock;
+	private long syncs;
+	private final Thread writer;
+
+	public DurableMempool(String logFile) {
+		this(Paths.get(logFile), DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY_MICROS);
+	}
+
+	/**
+	 * Opens the log, creating it if needed, and replays it into the queue
+	 *
+	 * @param maxBatchSize      is the most transactions written per fsync
+	 * @param maxLatencyMicros  is how long the writer waits for a batch to fill
+	 *                          up after its first transaction arrived; 0 writes
+	 *                          whatever arrived during the previous fsync
+	 *
+	 *                          TIME COMPLEXITY REQUIREMENT: O(N) for N logged
+	 *                          transactions
+	 */
+	public DurableMempool(Path logFile, int maxBatchSize, long maxLatencyMicros) {
+		if (maxBatchSize < 1) {
+			throw new RuntimeException("The batch size must be positive");
+		}
+		if (maxLatencyMicros < 0) {
+			throw new RuntimeException("The latency limit cannot be negative");
+		}
+		this.path = logFile;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+		this.addresses = new AddressDictionary();
+		this.pending = new ArrayDeque<>();
+		this.pendingLock = new ReentrantLock();
+		this.arrived = pendingLock.newCondition();
+		this.closed = false;
+		this.logLock = new Object();
+		this.syncs = 0;
+		ArrayList<Transaction> logged = new ArrayList<>();
+		try {
+			channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			replay(logged);
+		} catch (IOException | RuntimeException e) {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new RuntimeException("Could not open " + logFile + ": " + e.getMessage(), e);
+		}
+		this.replayed = logged.size();
+		// replayed in log order, so equal fees keep their order
+		this.queue = new PriorityLine<>(logged);
+		this.writer = new Thread(this::writeLoop, "mempool-wal-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Hands the transaction to the log writer
+	 *
+	 * @return a future that completes once the transaction is on disk and in the
+	 *         queue, or fails if it could not be logged
+	 */
+	public CompletableFuture<Void> enqueueAsync(Transaction t) {
+		byte[] record = encode(t);
+		Pending entry = new Pending(t, record);
+		pendingLock.lock();
+		try {
+			if (closed) {
+				throw new RuntimeException("The mempool is closed");
+			}
+			if (failure != null) {
+				throw new RuntimeException("The mempool log failed: " + failure.getMessage(), failure);
+			}
+			pending.add(entry);
+			// the writer only needs waking for the first and for a full batch
+			if (pending.size() == 1 || pending.size() >= maxBatchSize) {
+				arrived.signal();
+			}
+		} finally {
+			pendingLock.unlock();
+		}
+		return entry.done;
+	}
+
+	/**
+	 * Adds the transaction and returns once it is on disk
+	 */
+	public void enqueue(Transaction t) {
+		try {
+			enqueueAsync(t).join();
+		} catch (CompletionException e) {
+			throw new RuntimeException("Could not log transaction " + t + ": " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * @return the highest-fee transaction, or null if the mempool is empty
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(logN)
+	 */
+	public Transaction dequeue() {
+		synchronized (queue) {
+			return queue.isEmpty() ? null : queue.dequeue();
+		}
+	}
+
+	/**
+	 * Removes the highest-fee transactions into a new block with the packing
+	 * rule of the Blockchain constructor
+	 *
+	 * @return the block, or null if the mempool was empty
+	 */
+	public Block drainUntilFeeThreshold(int threshold) {
+		ArrayList<Transaction> packed = new ArrayList<>();
+		synchronized (queue) {
+			int cummulativeFees = 0;
+			while (!queue.isEmpty() && (packed.isEmpty() || cummulativeFees < threshold)) {
+				Transaction t = queue.dequeue();
+				cummulativeFees += t.getFee();
+				packed.add(t);
+			}
+		}
+		if (packed.isEmpty()) {
+			return null;
+		}
+		Block block = new Block();
+		block.addTransactions(packed);
+		return block;
+	}
+
+	/**
+	 * @return the number of acknowledged transactions waiting in the queue
+	 */
+	public int size() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of transactions recovered from the log on open
+	 */
+	public int numOfReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * @return the number of fsyncs issued for batches so far
+	 */
+	public long numOfSyncs() {
+		synchronized (logLock) {
+			return syncs;
+		}
+	}
+
+	/**
+	 * Rewrites the log with just the transactions still in the queue, dropping
+	 * the dequeued ones. The new log replaces the old one atomically
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(NlogN)
+	 */
+	public void checkpoint() {
+		synchronized (logLock) {
+			ArrayList<Transaction> waiting = new ArrayList<>();
+			synchronized (queue) {
+				for (Transaction t : queue) {
+					waiting.add(t);
+				}
+			}
+			Path next = path.resolveSibling(path.getFileName() + ".next");
+			try {
+				try (FileChannel out = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					writeFully(out, header());
+					ByteBuffer frame = newFrame(1 << 16);
+					// lowest priority first: replaying in this order gives the same ties
+					for (int i = waiting.size() - 1; i >= 0; i--) {
+						byte[] record = encode(waiting.get(i));
+						if (frame.remaining() < record.length) {
+							writeFully(out, seal(frame));
+							frame = newFrame(Math.max(1 << 16, record.length));
+						}
+						frame.put(record);
+					}
+					if (frame.position() > FRAME_HEADER_SIZE) {
+						writeFully(out, seal(frame));
+					}
+					out.force(true);
+				}
+				Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				forceDirectory(path);
+				channel.close();
+				channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			} catch (IOException e) {
+				throw new RuntimeException("Could not checkpoint " + path + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes what is pending, then stops the writer and closes the log
+	 */
+	@Override
+	public void close() {
+		pendingLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			arrived.signal();
+		} finally {
+			pendingLock.unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (logLock) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not close " + path + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private void writeLoop() {
+		ArrayList<Pending> batch = new ArrayList<>();
+		while (true) {
+			pendingLock.lock();
+			try {
+				while (pending.isEmpty() && !closed) {
+					arrived.awaitUninterruptibly();
+				}
+				if (pending.isEmpty()) {
+					return;
+				}
+				// give the batch a little time to fill up
+				long deadline = System.nanoTime() + maxLatencyNanos;
+				long wait = maxLatencyNanos;
+				while (pending.size() < maxBatchSize && !closed && wait > 0) {
+					try {
+						arrived.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+					wait = deadline - System.nanoTime();
+				}
+				while (!pending.isEmpty() && batch.size() < maxBatchSize) {
+					batch.add(pending.poll());
+				}
+			} finally {
+				pendingLock.unlock();
+			}
+			commit(batch);
+			batch.clear();
+		}
+	}
+
+	// one write and one fsync for the whole batch, then the queue, then the acks
+	private void commit(ArrayList<Pending> batch) {
+		int size = 0;
+		for (Pending entry : batch) {
+			size += entry.record.length;
+		}
+		ByteBuffer buffer = newFrame(size);
+		for (Pending entry : batch) {
+			buffer.put(entry.record);
+		}
+		seal(buffer);
+		try {
+			synchronized (logLock) {
+				writeFully(channel, buffer);
+				channel.force(false);
+				syncs++;
+				synchronized (queue) {
+					for (Pending entry : batch) {
+						queue.enqueue(entry.transaction);
+					}
+				}
+			}
+		} catch (IOException e) {
+			fail(batch, e);
+			return;
+		}
+		for (Pending entry : batch) {
+			entry.done.complete(null);
+		}
+	}
+
+	// nothing is acknowledged after a failed write; later enqueues are refused
+	private void fail(ArrayList<Pending> batch, IOException e) {
+		ArrayList<Pending> refused = new ArrayList<>(batch);
+		pendingLock.lock();
+		try {
+			failure = e;
+			refused.addAll(pending);
+			pending.clear();
+		} finally {
+			pendingLock.unlock();
+		}
+		for (Pending entry : refused) {
+			entry.done.completeExceptionally(e);
+		}
+	}
+
+	// reads every intact frame; only a torn last frame is cut off the log
+	private void replay(ArrayList<Transaction> logged) throws IOException {
+		long size = channel.size();
+		if (size == 0) {
+			writeFully(channel, header());
+			channel.force(true);
+			forceDirectory(path);
+			return;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new RuntimeException("Mempool log is too large to replay, checkpoint it more often: " + path);
+		}
+		ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if (size < HEADER_SIZE || log.getInt(0) != MAGIC) {
+			throw new RuntimeException("Not a mempool log: " + path);
+		}
+		if (log.getInt(4) != VERSION) {
+			throw new RuntimeException("Unsupported mempool log version " + log.getInt(4) + ": " + path);
+		}
+		int position = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		byte[] name = new byte[64];
+		while (position + FRAME_HEADER_SIZE <= size) {
+			int length = log.getInt(position);
+			if (length <= 0 || length > size - position - FRAME_HEADER_SIZE) {
+				// the log ends inside this frame, the batch being written at the crash
+				break;
+			}
+			ByteBuffer records = log.slice(position + FRAME_HEADER_SIZE, length);
+			crc.reset();
+			crc.update(records.duplicate());
+			if ((int) crc.getValue() != log.getInt(position + 4)) {
+				if (position + FRAME_HEADER_SIZE + length == size) {
+					// a torn last batch, it was never acknowledged
+					break;
+				}
+				throw new RuntimeException("Mempool log is damaged at byte " + position
+						+ ", acknowledged transactions follow it: " + path);
+			}
+			try {
+				while (records.hasRemaining()) {
+					String[] names = new String[2];
+					for (int i = 0; i < 2; i++) {
+						int nameLength = records.getShort() & 0xffff;
+						if (nameLength > name.length) {
+							name = new byte[nameLength];
+						}
+						records.get(name, 0, nameLength);
+						names[i] = addresses.intern(name, 0, nameLength);
+					}
+					logged.add(new Transaction(names[0], names[1], records.getInt(), records.getInt()));
+				}
+			} catch (BufferUnderflowException e) {
+				throw new RuntimeException("Mempool log has a malformed batch at byte " + position + ": " + path, e);
+			}
+			position += FRAME_HEADER_SIZE + length;
+		}
+		if (position < size) {
+			channel.truncate(position);
+			channel.force(true);
+		}
+		channel.position(position);
+	}
+
+	// a frame with room for the records after its header
+	private static ByteBuffer newFrame(int recordBytes) {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + recordBytes);
+		frame.position(FRAME_HEADER_SIZE);
+		return frame;
+	}
+
+	// fills in the length and checksum of the records put so far, ready to write
+	private static ByteBuffer seal(ByteBuffer frame) {
+		int length = frame.position() - FRAME_HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(frame.array(), FRAME_HEADER_SIZE, length);
+		frame.putInt(0, length).putInt(4, (int) crc.getValue());
+		frame.flip();
+		return frame;
+	}
+
+	// makes a created or renamed file durable: the directory entry is forced too
+	private static void forceDirectory(Path file) throws IOException {
+		if (System.getProperty("os.name").startsWith("Windows")) {
+			// directories cannot be opened there, and NTFS journals the entry itself
+			return;
+		}
+		Path directory = file.toAbsolutePath().getParent();
+		try (FileChannel entries = FileChannel.open(directory, StandardOpenOption.READ)) {
+			entries.force(true);
+		}
+	}
+
+	private static ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		return header;
+	}
+
+	private static byte[] encode(Transaction t) {
+		byte[] sender = encodeName(t.getSender());
+		byte[] receiver = encodeName(t.getReceiver());
+		ByteBuffer record = ByteBuffer.allocate(4 + sender.length + receiver.length + 8);
+		record.putShort((short) sender.length).put(sender);
+		record.putShort((short) receiver.length).put(receiver);
+		record.putInt(t.getAmount()).putInt(t.getFee());
+		return record.array();
+	}
+
+	private static byte[] encodeName(String name) {
+		if (name == null) {
+			throw new RuntimeException("A logged transaction needs a sender and a receiver");
+		}
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_NAME_LENGTH) {
+			throw new RuntimeException("Name is longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+		}
+		return bytes;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static class Pending {
+		private final Transaction transaction;
+		private final byte[] record;
+		private final CompletableFuture<Void> done;
+
+		Pending(Transaction transaction, byte[] record) {
+			this.transaction = transaction;
+			this.record = record;
+			this.done = new CompletableFuture<>();
+		}
+	}
+
+	/**
+	 * Throughput run: producer threads (first argument, default 4) each log
+	 * the same number of transactions (second argument, default 20000), once
+	 * with group commit and once with one fsync per transaction. Then the log
+	 * is reopened and must replay every acknowledged transaction
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		Path log = Files.createTempFile("mempool-", ".wal");
+		Files.delete(log);
+		try {
+			for (int batchSize : new int[] { 1, DEFAULT_MAX_BATCH_SIZE }) {
+				Files.deleteIfExists(log);
+				int count = batchSize == 1 ? Math.min(perProducer, 500) : perProducer;
+				long begin = System.nanoTime();
+				long syncs;
+				try (DurableMempool mempool = new DurableMempool(log, batchSize, batchSize == 1 ? 0 : 200)) {
+					CountDownLatch done = new CountDownLatch(producers);
+					for (int p = 0; p < producers; p++) {
+						int id = p;
+						new Thread(() -> {
+							ArrayList<CompletableFuture<Void>> acks = new ArrayList<>();
+							for (int i = 0; i < count; i++) {
+								acks.add(mempool.enqueueAsync(new Transaction("sender" + id, "receiver" + i, i, i % 100)));
+							}
+							CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).join();
+							done.countDown();
+						}).start();
+					}
+					done.await();
+					syncs = mempool.numOfSyncs();
+				}
+				double seconds = (System.nanoTime() - begin) / 1e9;
+				long expected = (long) producers * count;
+				try (DurableMempool reopened = new DurableMempool(log, batchSize, 0)) {
+					System.out.println(String.format("batch limit: %d  logged: %d  fsyncs: %d  %.0f tx/s  replayed: %d",
+							batchSize, expected, syncs, expected / seconds, reopened.numOfReplayed()));
+					if (reopened.numOfReplayed() != expected) {
+						throw new RuntimeException("Acknowledged transactions were lost");
+					}
+				}
+			}
+		} finally {
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(log.resolveSibling(log.getFileName() + ".next"));
+		}
+	}
+}
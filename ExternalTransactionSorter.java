@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * - Out-of-core fee sort for transaction files larger than the heap
+ * - The constructor streams the text file through TransactionFileParser in
+ * runs of at most runSize transactions, sorts each run and spills it to a
+ * temporary file in the binary transaction format
+ * - Iterating k-way merges the runs back into one fee-descending stream that
+ * can be fed to the Blockchain(Iterator, int) constructor
+ * - At most runSize transactions are held in memory at any time, plus one
+ * head transaction per run during the merge
+ * - The output order is exactly the order a PriorityLine would dequeue the
+ * same file in, including ties (later transactions first)
+ * - close() deletes the temporary files; they are also deleted as soon as
+ * the stream is exhausted
+ */
+public class ExternalTransactionSorter implements Iterator<Transaction>, Closeable {
+	private final ArrayList<Path> runFiles;
+	private final PriorityLine<RunCursor> merge;
+	private final long count;
+
+	/**
+	 * @param textFile is a transaction file in the text format
+	 * @param runSize  is the maximum number of transactions sorted in memory at
+	 *                 once
+	 *
+	 *                 TIME COMPLEXITY REQUIREMENT: O(NlogN)
+	 */
+	public ExternalTransactionSorter(String textFile, int runSize) {
+		if (runSize < 1) {
+			throw new RuntimeException("The run size must be positive");
+		}
+		runFiles = new ArrayList<>();
+		merge = new PriorityLine<>();
+		Transaction[] run = new Transaction[runSize];
+		int[] filled = { 0 };
+		try {
+			count = new TransactionFileParser(textFile).forEach(t -> {
+				run[filled[0]++] = t;
+				if (filled[0] == runSize) {
+					spill(run, filled[0]);
+					filled[0] = 0;
+				}
+			});
+			if (runFiles.isEmpty()) {
+				// everything fit in one run, no need to touch the disk
+				sortRun(run, filled[0]);
+				addRun(new RunCursor(Arrays.asList(run).subList(0, filled[0]).iterator(), 0, null));
+			} else {
+				if (filled[0] > 0) {
+					spill(run, filled[0]);
+				}
+				for (int i = 0; i < runFiles.size(); i++) {
+					BinaryTransactionReader reader = new BinaryTransactionReader(runFiles.get(i));
+					addRun(new RunCursor(reader, i, reader));
+				}
+			}
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of transactions in the input file
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * @return the number of runs the input was split into
+	 */
+	public int numOfRuns() {
+		return Math.max(1, runFiles.size());
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !merge.isEmpty();
+	}
+
+	/**
+	 * TIME COMPLEXITY REQUIREMENT: O(logR) for R runs
+	 */
+	@Override
+	public Transaction next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		RunCursor cursor = merge.dequeue();
+		Transaction t = cursor.head;
+		if (cursor.advance()) {
+			merge.enqueue(cursor);
+		}
+		if (merge.isEmpty()) {
+			close();
+		}
+		return t;
+	}
+
+	/**
+	 * Releases the run readers and deletes the temporary files
+	 */
+	@Override
+	public void close() {
+		while (!merge.isEmpty()) {
+			merge.dequeue().close();
+		}
+		for (Path file : runFiles) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	private void spill(Transaction[] run, int size) {
+		sortRun(run, size);
+		Path file;
+		try {
+			file = Files.createTempFile("transactions-run-", ".bin");
+		} catch (IOException e) {
+			throw new RuntimeException("Could not create a run file: " + e.getMessage(), e);
+		}
+		runFiles.add(file);
+		try (BinaryTransactionWriter writer = new BinaryTransactionWriter(file)) {
+			for (int i = 0; i < size; i++) {
+				writer.write(run[i]);
+				run[i] = null;
+			}
+		}
+	}
+
+	// fee-descending, equal fees latest first: reverse, then a stable sort
+	private static void sortRun(Transaction[] run, int size) {
+		for (int i = 0, j = size - 1; i < j; i++, j--) {
+			Transaction t = run[i];
+			run[i] = run[j];
+			run[j] = t;
+		}
+		Arrays.sort(run, 0, size, (a, b) -> b.compareTo(a));
+	}
+
+	private void addRun(RunCursor cursor) {
+		// only an empty input file produces a run without a head
+		if (cursor.head != null) {
+			merge.enqueue(cursor);
+		}
+	}
+
+	// head of one sorted run; later runs win ties because they hold later input
+	private static class RunCursor implements Comparable<RunCursor> {
+		private final Iterator<Transaction> source;
+		private final int run;
+		private final Closeable resource;
+		private Transaction head;
+
+		RunCursor(Iterator<Transaction> source, int run, Closeable resource) {
+			this.source = source;
+			this.run = run;
+			this.resource = resource;
+			advance();
+		}
+
+		boolean advance() {
+			if (source.hasNext()) {
+				head = source.next();
+				return true;
+			}
+			head = null;
+			close();
+			return false;
+		}
+
+		void close() {
+			if (resource != null) {
+				try {
+					resource.close();
+				} catch (IOException e) {
+					throw new RuntimeException("Could not close a run file: " + e.getMessage(), e);
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(RunCursor o) {
+			int result = head.compareTo(o.head);
+			if (result != 0) {
+				return result;
+			}
+			return Integer.compare(run, o.run);
+		}
+	}
+}
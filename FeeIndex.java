@@ -0,0 +1,385 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * - Query index over the fees of a chain: "every transaction with a fee
+ * between a and b" and "the k highest fees in blocks i to j"
+ * - Every block keeps its transactions and their fees in block order, which
+ * is fee-descending, so the matches of a fee range inside a block are one
+ * contiguous run found by two binary searches
+ * - A segment tree over the blocks holds the minimum and maximum fee of every
+ * range of blocks. Range queries skip every subtree whose fees cannot match;
+ * top-K queries expand the subtrees best-first from a PriorityLine, so only
+ * the blocks that hold the answer are opened
+ * - Blocks are indexed in chain order and only appended
+ */
+public class FeeIndex {
+	private Transaction[][] transactions;
+	private int[][] fees;
+	private int numOfBlocks;
+	// segment tree over the blocks, leaf b at capacity + b; empty ranges hold
+	// MAX_VALUE as minimum and MIN_VALUE as maximum
+	private int capacity;
+	private int[] minFees;
+	private int[] maxFees;
+
+	public FeeIndex() {
+		transactions = new Transaction[16][];
+		fees = new int[16][];
+		numOfBlocks = 0;
+		capacity = 16;
+		minFees = new int[2 * capacity];
+		maxFees = new int[2 * capacity];
+		Arrays.fill(minFees, Integer.MAX_VALUE);
+		Arrays.fill(maxFees, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Indexes every block of the chain
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N + B logB) for N transactions in B blocks
+	 */
+	public FeeIndex(Blockchain chain) {
+		this();
+		for (Block block : chain) {
+			add(block);
+		}
+	}
+
+	/**
+	 * Indexes the next block of the chain
+	 *
+	 * @return the number the block got
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N + logB) for a block of N
+	 *         transactions, amortized
+	 */
+	public int add(Block block) {
+		Transaction[] ordered = new Transaction[block.numOfTransactions()];
+		int[] blockFees = new int[ordered.length];
+		int i = 0;
+		boolean descending = true;
+		for (Transaction t : block) {
+			ordered[i] = t;
+			blockFees[i] = t.getFee();
+			descending &= i == 0 || blockFees[i - 1] >= blockFees[i];
+			i++;
+		}
+		if (!descending) {
+			// fees far apart can overflow the fee comparison the block is sorted with
+			Arrays.sort(ordered, Comparator.comparingInt(Transaction::getFee).reversed());
+			for (i = 0; i < ordered.length; i++) {
+				blockFees[i] = ordered[i].getFee();
+			}
+		}
+		int number = numOfBlocks;
+		if (number == transactions.length) {
+			transactions = Arrays.copyOf(transactions, 2 * number);
+			fees = Arrays.copyOf(fees, 2 * number);
+		}
+		if (number == capacity) {
+			grow();
+		}
+		transactions[number] = ordered;
+		fees[number] = blockFees;
+		numOfBlocks++;
+		int node = capacity + number;
+		if (blockFees.length > 0) {
+			minFees[node] = blockFees[blockFees.length - 1];
+			maxFees[node] = blockFees[0];
+		}
+		for (node >>= 1; node > 0; node >>= 1) {
+			minFees[node] = Math.min(minFees[2 * node], minFees[2 * node + 1]);
+			maxFees[node] = Math.max(maxFees[2 * node], maxFees[2 * node + 1]);
+		}
+		return number;
+	}
+
+	/**
+	 * @return the number of indexed blocks
+	 */
+	public int numOfBlocks() {
+		return numOfBlocks;
+	}
+
+	/**
+	 * @return the lowest fee in the block, Integer.MAX_VALUE for an empty block
+	 */
+	public int minFee(int block) {
+		return minFees[capacity + checkBlock(block)];
+	}
+
+	/**
+	 * @return the highest fee in the block, Integer.MIN_VALUE for an empty block
+	 */
+	public int maxFee(int block) {
+		return maxFees[capacity + checkBlock(block)];
+	}
+
+	/**
+	 * @return every transaction of the chain with minFee <= fee <= maxFee
+	 */
+	public SinglyLinkedList<Transaction> range(int minFee, int maxFee) {
+		return range(minFee, maxFee, 0, numOfBlocks);
+	}
+
+	/**
+	 * @return every transaction of the blocks [fromBlock, toBlock) with
+	 *         minFee <= fee <= maxFee, block by block and highest fee first
+	 *         within a block
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(K + H logN) for K results in H
+	 *         blocks whose fees overlap the range
+	 */
+	public SinglyLinkedList<Transaction> range(int minFee, int maxFee, int fromBlock, int toBlock) {
+		checkRange(fromBlock, toBlock);
+		SinglyLinkedList<Transaction> result = new SinglyLinkedList<>();
+		if (minFee <= maxFee) {
+			collect(1, 0, capacity, fromBlock, toBlock, minFee, maxFee, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of transactions of the chain with minFee <= fee <=
+	 *         maxFee, without visiting them
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(H logN) for H blocks whose fees
+	 *         overlap the range
+	 */
+	public long count(int minFee, int maxFee) {
+		return minFee <= maxFee ? count(1, 0, capacity, minFee, maxFee) : 0;
+	}
+
+	/**
+	 * @return the k highest-fee transactions of the chain, highest first
+	 */
+	public SinglyLinkedList<Transaction> topK(int k) {
+		return topK(k, 0, numOfBlocks);
+	}
+
+	/**
+	 * @return the k highest-fee transactions of the blocks [fromBlock,
+	 *         toBlock), highest first; fewer if the blocks hold fewer
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O((K + logB) log(K + logB))
+	 */
+	public SinglyLinkedList<Transaction> topK(int k, int fromBlock, int toBlock) {
+		checkRange(fromBlock, toBlock);
+		SinglyLinkedList<Transaction> result = new SinglyLinkedList<>();
+		PriorityLine<Candidate> frontier = new PriorityLine<>();
+		// the canonical segment tree nodes that cover exactly [fromBlock, toBlock)
+		for (int left = capacity + fromBlock, right = capacity + toBlock; left < right; left >>= 1, right >>= 1) {
+			if ((left & 1) == 1) {
+				offerNode(frontier, left++);
+			}
+			if ((right & 1) == 1) {
+				offerNode(frontier, --right);
+			}
+		}
+		while (result.size() < k && !frontier.isEmpty()) {
+			Candidate best = frontier.dequeue();
+			if (best.block < 0) {
+				if (best.node >= capacity) {
+					frontier.enqueue(new Candidate(best.key, -1, best.node - capacity, 0));
+				} else {
+					offerNode(frontier, 2 * best.node);
+					offerNode(frontier, 2 * best.node + 1);
+				}
+				continue;
+			}
+			result.add(transactions[best.block][best.position]);
+			int next = best.position + 1;
+			if (next < fees[best.block].length) {
+				frontier.enqueue(new Candidate(fees[best.block][next], -1, best.block, next));
+			}
+		}
+		return result;
+	}
+
+	private void offerNode(PriorityLine<Candidate> frontier, int node) {
+		// empty subtrees never hold an answer
+		if (minFees[node] <= maxFees[node]) {
+			frontier.enqueue(new Candidate(maxFees[node], node, -1, 0));
+		}
+	}
+
+	private void collect(int node, int low, int high, int fromBlock, int toBlock, int minFee, int maxFee,
+			SinglyLinkedList<Transaction> result) {
+		if (high <= fromBlock || toBlock <= low || maxFees[node] < minFee || minFees[node] > maxFee) {
+			return;
+		}
+		if (node >= capacity) {
+			int block = node - capacity;
+			int end = firstBelow(fees[block], minFee);
+			for (int i = firstAtMost(fees[block], maxFee); i < end; i++) {
+				result.add(transactions[block][i]);
+			}
+			return;
+		}
+		int mid = (low + high) >>> 1;
+		collect(2 * node, low, mid, fromBlock, toBlock, minFee, maxFee, result);
+		collect(2 * node + 1, mid, high, fromBlock, toBlock, minFee, maxFee, result);
+	}
+
+	private long count(int node, int low, int high, int minFee, int maxFee) {
+		if (low >= numOfBlocks || maxFees[node] < minFee || minFees[node] > maxFee) {
+			return 0;
+		}
+		if (node >= capacity) {
+			int block = node - capacity;
+			return firstBelow(fees[block], minFee) - firstAtMost(fees[block], maxFee);
+		}
+		int mid = (low + high) >>> 1;
+		return count(2 * node, low, mid, minFee, maxFee) + count(2 * node + 1, mid, high, minFee, maxFee);
+	}
+
+	// first index of a descending array whose fee is <= fee
+	private static int firstAtMost(int[] descending, int fee) {
+		int low = 0;
+		int high = descending.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (descending[mid] <= fee) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	// first index of a descending array whose fee is < fee
+	private static int firstBelow(int[] descending, int fee) {
+		int low = 0;
+		int high = descending.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (descending[mid] < fee) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	// doubles the number of leaves and rebuilds the inner nodes
+	private void grow() {
+		int oldCapacity = capacity;
+		capacity *= 2;
+		int[] oldMin = minFees;
+		int[] oldMax = maxFees;
+		minFees = new int[2 * capacity];
+		maxFees = new int[2 * capacity];
+		Arrays.fill(minFees, Integer.MAX_VALUE);
+		Arrays.fill(maxFees, Integer.MIN_VALUE);
+		System.arraycopy(oldMin, oldCapacity, minFees, capacity, oldCapacity);
+		System.arraycopy(oldMax, oldCapacity, maxFees, capacity, oldCapacity);
+		for (int node = capacity - 1; node > 0; node--) {
+			minFees[node] = Math.min(minFees[2 * node], minFees[2 * node + 1]);
+			maxFees[node] = Math.max(maxFees[2 * node], maxFees[2 * node + 1]);
+		}
+	}
+
+	private int checkBlock(int block) {
+		if (block < 0 || block >= numOfBlocks) {
+			throw new IndexOutOfBoundsException("Block " + block + " out of bounds for " + numOfBlocks + " blocks");
+		}
+		return block;
+	}
+
+	private void checkRange(int fromBlock, int toBlock) {
+		if (fromBlock < 0 || toBlock > numOfBlocks || fromBlock > toBlock) {
+			throw new IndexOutOfBoundsException(
+					"Blocks [" + fromBlock + ", " + toBlock + ") out of bounds for " + numOfBlocks + " blocks");
+		}
+	}
+
+	// a segment tree node (block -1) keyed by its highest fee, or the next
+	// transaction of a block keyed by its fee
+	private static class Candidate implements Comparable<Candidate> {
+		private final int key;
+		private final int node;
+		private final int block;
+		private final int position;
+
+		Candidate(int key, int node, int block, int position) {
+			this.key = key;
+			this.node = node;
+			this.block = block;
+			this.position = position;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return Integer.compare(key, o.key);
+		}
+	}
+
+	/**
+	 * Packs the transaction file (first argument) with the threshold (second
+	 * argument), then runs random fee-range and top-K queries against the
+	 * index and against a scan of every block, and checks that they agree
+	 */
+	public static void main(String[] args) {
+		Blockchain chain = new Blockchain(Utilities.loadTransactions(args[0]), Integer.parseInt(args[1]));
+		long begin = System.nanoTime();
+		FeeIndex index = new FeeIndex(chain);
+		long built = System.nanoTime() - begin;
+		int lowest = Integer.MAX_VALUE;
+		int highest = Integer.MIN_VALUE;
+		for (int b = 0; b < index.numOfBlocks(); b++) {
+			lowest = Math.min(lowest, index.minFee(b));
+			highest = Math.max(highest, index.maxFee(b));
+		}
+		Random random = new Random(42);
+		long indexTime = 0;
+		long scanTime = 0;
+		long results = 0;
+		for (int query = 0; query < 200; query++) {
+			int a = lowest + random.nextInt(Math.max(1, highest - lowest + 1));
+			int b = a + random.nextInt(3);
+			int from = random.nextInt(index.numOfBlocks());
+			int to = from + random.nextInt(index.numOfBlocks() - from) + 1;
+			int k = 1 + random.nextInt(100);
+
+			begin = System.nanoTime();
+			SinglyLinkedList<Transaction> inRange = index.range(a, b, from, to);
+			SinglyLinkedList<Transaction> top = index.topK(k, from, to);
+			indexTime += System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			int expectedInRange = 0;
+			int[] all = new int[0];
+			int size = 0;
+			for (int block = from; block < to; block++) {
+				for (Transaction t : chain.get(block)) {
+					if (t.getFee() >= a && t.getFee() <= b) {
+						expectedInRange++;
+					}
+					if (size == all.length) {
+						all = Arrays.copyOf(all, Math.max(16, 2 * size));
+					}
+					all[size++] = t.getFee();
+				}
+			}
+			Arrays.sort(all, 0, size);
+			scanTime += System.nanoTime() - begin;
+
+			int rank = size - 1;
+			for (Transaction t : top) {
+				if (t.getFee() != all[rank--]) {
+					throw new RuntimeException("Top-" + k + " of blocks [" + from + ", " + to + ") is wrong");
+				}
+			}
+			if (inRange.size() != expectedInRange || top.size() != Math.min(k, size)) {
+				throw new RuntimeException("Query " + query + " disagrees with the scan");
+			}
+			results += inRange.size() + top.size();
+		}
+		System.out.println(String.format("blocks: %d  index built in %d ms  results: %d  index: %d ms  scan: %d ms",
+				index.numOfBlocks(), built / 1000000, results, indexTime / 1000000, scanTime / 1000000));
+	}
+}
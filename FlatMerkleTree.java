@@ -0,0 +1,206 @@
+import java.util.HashMap;
+
+/**
+ * - Array-backed alternative to MerkleTree for large blocks
+ * - The whole tree lives in one byte array of 32-byte digests in level order:
+ * the root is node 0, the children of node i are 2i + 1 and 2i + 2, and the
+ * leaves occupy the last leafCount slots
+ * - Parent, child and sibling are found by index arithmetic, so there are no
+ * Node objects and no pointers to chase
+ * - Root hash, traversals and proofs are identical to the ones of MerkleTree
+ */
+public class FlatMerkleTree {
+	private static final int DIGEST = HashEngine.DIGEST_LENGTH;
+
+	private final byte[] digests;
+	private final int leafCount;
+	private final int numOfNodes;
+	private final int height;
+	// leaf position in the block by leaf hash
+	private final HashMap<Hash256, Integer> leafIndex;
+
+	/**
+	 * @param block is the Block that the tree will be created for. As with
+	 * MerkleTree, the root hash is sent to the block through setRootHash()
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N) SPACE COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public FlatMerkleTree(Block block) {
+		int blockSize = block.numOfTransactions();
+		int leaves = 1;
+		while (leaves < blockSize) {
+			leaves *= 2;
+		}
+		if (leaves > (Integer.MAX_VALUE / DIGEST + 1) / 2) {
+			throw new RuntimeException("Block is too large for a flat Merkle tree: " + blockSize);
+		}
+		leafCount = leaves;
+		numOfNodes = 2 * leafCount - 1;
+		height = Integer.numberOfTrailingZeros(leafCount);
+		digests = new byte[numOfNodes * DIGEST];
+
+		HashEngine engine = HashEngine.get();
+		int node = leafCount - 1;
+		for (Transaction transaction : block) {
+			transaction.leafHash().writeTo(digests, node * DIGEST);
+			node++;
+		}
+		// every level is built from the one below it; a node whose leaves are
+		// all dummies takes the cached padding hash of its level
+		for (int level = 0, first = leafCount - 1, real = blockSize; level <= height; level++) {
+			Hash256 padding = MerkleTree.paddingHash(level);
+			for (int i = first + real; i < 2 * first + 1; i++) {
+				padding.writeTo(digests, i * DIGEST);
+			}
+			if (level < height) {
+				first = (first - 1) / 2;
+				real = (real + 1) / 2;
+				for (int i = first; i < first + real; i++) {
+					engine.combine(digests, (2 * i + 1) * DIGEST, digests, (2 * i + 2) * DIGEST, digests, i * DIGEST);
+				}
+			}
+		}
+		// the first occurrence wins, like the left-first scan it replaces
+		leafIndex = new HashMap<>(Math.max(16, blockSize * 4 / 3 + 1));
+		for (int i = 0; i < blockSize; i++) {
+			leafIndex.putIfAbsent(hashAt(leafCount - 1 + i), i);
+		}
+		block.setRootHash(hashAt(0));
+	}
+
+	/**
+	 * @return the height of the tree
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @return the number of inner nodes in the tree
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public int innerNodes() {
+		return numOfNodes - leafCount;
+	}
+
+	/**
+	 * @return the hash codes of the tree in level-order, which is simply the
+	 * order of the backing array
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public SinglyLinkedList<Hash256> breadthFirstTraversal() {
+		SinglyLinkedList<Hash256> list = new SinglyLinkedList<>();
+		for (int i = 0; i < numOfNodes; i++) {
+			list.add(hashAt(i));
+		}
+		return list;
+	}
+
+	/**
+	 * @return the hash codes of the tree in the requested depth-first order
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public SinglyLinkedList<Hash256> depthFirstTraversal(Order order) {
+		SinglyLinkedList<Hash256> returnList = new SinglyLinkedList<>();
+		switch (order) {
+		case PREORDER: {
+			preOrder(0, returnList);
+			break;
+		}
+		case INORDER: {
+			inOrder(0, returnList);
+			break;
+		}
+		case POSTORDER: {
+			postOrder(0, returnList);
+			break;
+		}
+		default:
+			throw new RuntimeException("Unexpected value: " + order);
+		}
+		return returnList;
+	}
+
+	private void inOrder(int node, SinglyLinkedList<Hash256> list) {
+		if (node >= numOfNodes) {
+			return;
+		}
+		inOrder(2 * node + 1, list);
+		list.add(hashAt(node));
+		inOrder(2 * node + 2, list);
+	}
+
+	private void preOrder(int node, SinglyLinkedList<Hash256> list) {
+		if (node >= numOfNodes) {
+			return;
+		}
+		list.add(hashAt(node));
+		preOrder(2 * node + 1, list);
+		preOrder(2 * node + 2, list);
+	}
+
+	private void postOrder(int node, SinglyLinkedList<Hash256> list) {
+		if (node >= numOfNodes) {
+			return;
+		}
+		postOrder(2 * node + 1, list);
+		postOrder(2 * node + 2, list);
+		list.add(hashAt(node));
+	}
+
+	/**
+	 * @return the sibling hashes from the leaf of the transaction up to (but
+	 * excluding) the root, or an empty list if the transaction is not in the
+	 * block. Same content as MerkleTree.extractProof
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(logN)
+	 */
+	public SinglyLinkedList<Hash256> extractProof(Transaction t) {
+		SinglyLinkedList<Hash256> returnList = new SinglyLinkedList<>();
+		int leaf = leafPosition(t);
+		if (leaf >= 0) {
+			generateList(leafCount - 1 + leaf, returnList);
+		}
+		return returnList;
+	}
+
+	/**
+	 * @return true if the transaction is one of the leaves of this tree
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public boolean contains(Transaction t) {
+		return leafPosition(t) >= 0;
+	}
+
+	/**
+	 * @return the position of the transaction among the leaves (its index in
+	 * the block), or -1 if the transaction is not in the block
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public int leafPosition(Transaction t) {
+		Integer leaf = leafIndex.get(t.leafHash());
+		return leaf == null ? -1 : leaf;
+	}
+
+	private void generateList(int node, SinglyLinkedList<Hash256> returnList) {
+		// base case root node
+		if (node == 0) {
+			return;
+		}
+		// odd nodes are left children, their sibling is the next slot
+		int sibling = (node & 1) == 1 ? node + 1 : node - 1;
+		returnList.add(hashAt(sibling));
+		generateList((node - 1) / 2, returnList);
+	}
+
+	private Hash256 hashAt(int node) {
+		return Hash256.of(digests, node * DIGEST);
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * - Immutable SHA-256 digest stored as four longs (big-endian words)
+ * - Replaces the 64-character hex Strings used for Merkle nodes, block root
+ * hashes and proofs: one object of 48 bytes instead of a String with a
+ * 64-byte backing array, and equals() compares four words
+ * - Hex is only produced at the edges through toHex() / toString()
+ * - Ordering is the unsigned lexicographic order of the digest bytes
+ */
+public final class Hash256 implements Comparable<Hash256> {
+	private final long w0;
+	private final long w1;
+	private final long w2;
+	private final long w3;
+
+	private Hash256(long w0, long w1, long w2, long w3) {
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+	}
+
+	/**
+	 * @return the digest stored in bytes[offset, offset + 32)
+	 */
+	public static Hash256 of(byte[] bytes, int offset) {
+		return new Hash256(word(bytes, offset), word(bytes, offset + 8), word(bytes, offset + 16),
+				word(bytes, offset + 24));
+	}
+
+	/**
+	 * @return the digest encoded by a 64-character hex String
+	 */
+	public static Hash256 fromHex(String hex) {
+		byte[] bytes = new byte[HashEngine.DIGEST_LENGTH];
+		HashEngine.fromHex(hex, bytes, 0);
+		return of(bytes, 0);
+	}
+
+	/**
+	 * @return the SHA-256 of the UTF-8 encoding of the text, the same value as
+	 *         Utilities.cryptographicHashFunction(text)
+	 */
+	public static Hash256 hashOf(String text) {
+		return HashEngine.get().hash(text);
+	}
+
+	/**
+	 * @return the SHA-256 of the bytes
+	 */
+	public static Hash256 hashOf(byte[] bytes) {
+		return HashEngine.get().hash(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return the parent digest of two children, the same value as
+	 *         Utilities.cryptographicHashFunction(left.toHex(), right.toHex())
+	 */
+	public static Hash256 combine(Hash256 left, Hash256 right) {
+		return HashEngine.get().combine(left, right);
+	}
+
+	/**
+	 * @return the first 64 bits of the digest, for structures that need a few
+	 *         uniformly distributed bits per key
+	 */
+	long high() {
+		return w0;
+	}
+
+	/**
+	 * @return the second 64 bits of the digest
+	 */
+	long low() {
+		return w1;
+	}
+
+	/**
+	 * Writes the 32 digest bytes into dest[offset, offset + 32)
+	 */
+	public void writeTo(byte[] dest, int offset) {
+		putWord(dest, offset, w0);
+		putWord(dest, offset + 8, w1);
+		putWord(dest, offset + 16, w2);
+		putWord(dest, offset + 24, w3);
+	}
+
+	public byte[] toBytes() {
+		byte[] bytes = new byte[HashEngine.DIGEST_LENGTH];
+		writeTo(bytes, 0);
+		return bytes;
+	}
+
+	public String toHex() {
+		return HashEngine.toHex(toBytes(), 0);
+	}
+
+	@Override
+	public String toString() {
+		return toHex();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Hash256)) {
+			return false;
+		}
+		Hash256 other = (Hash256) o;
+		return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+	}
+
+	@Override
+	public int hashCode() {
+		// the digest is already uniformly distributed, any word will do
+		return (int) (w0 ^ (w0 >>> 32));
+	}
+
+	@Override
+	public int compareTo(Hash256 o) {
+		int result = Long.compareUnsigned(w0, o.w0);
+		if (result == 0) {
+			result = Long.compareUnsigned(w1, o.w1);
+		}
+		if (result == 0) {
+			result = Long.compareUnsigned(w2, o.w2);
+		}
+		if (result == 0) {
+			result = Long.compareUnsigned(w3, o.w3);
+		}
+		return result;
+	}
+
+	private static long word(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xffL);
+		}
+		return value;
+	}
+
+	private static void putWord(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * - Reusable SHA-256 engine that works on raw 32-byte digests
+ * - Each thread owns one engine (see get()), so the MessageDigest instance and
+ * the scratch buffers are allocated once per thread instead of once per hash
+ * - Hex is only produced when a caller asks for it through toHex()
+ * - The pair hash follows Utilities.cryptographicHashFunction(String, String):
+ * both children are hashed as their lowercase hex text and the two digests
+ * are merged with XOR
+ */
+public final class HashEngine {
+	public static final int DIGEST_LENGTH = 32;
+	public static final int HEX_LENGTH = 2 * DIGEST_LENGTH;
+
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final ThreadLocal<HashEngine> ENGINES = ThreadLocal.withInitial(HashEngine::new);
+
+	private final MessageDigest digest;
+	private final byte[] hexScratch;
+	private final byte[] leftScratch;
+	private final byte[] rightScratch;
+	private final byte[] pairScratch;
+	private byte[] textScratch;
+
+	private HashEngine() {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available", e);
+		}
+		hexScratch = new byte[HEX_LENGTH];
+		leftScratch = new byte[DIGEST_LENGTH];
+		rightScratch = new byte[DIGEST_LENGTH];
+		pairScratch = new byte[2 * DIGEST_LENGTH];
+		textScratch = new byte[128];
+	}
+
+	/**
+	 * @return the engine owned by the calling thread
+	 */
+	public static HashEngine get() {
+		return ENGINES.get();
+	}
+
+	/**
+	 * Hashes input[offset, offset + length) and writes the digest to
+	 * out[outOffset, outOffset + 32)
+	 */
+	public void hash(byte[] input, int offset, int length, byte[] out, int outOffset) {
+		digest.update(input, offset, length);
+		finish(out, outOffset);
+	}
+
+	/**
+	 * @return a new 32-byte digest of the input bytes
+	 */
+	public byte[] hash(byte[] input) {
+		byte[] out = new byte[DIGEST_LENGTH];
+		hash(input, 0, input.length, out, 0);
+		return out;
+	}
+
+	/**
+	 * @return the digest of input[offset, offset + length)
+	 */
+	public Hash256 hash(byte[] input, int offset, int length) {
+		hash(input, offset, length, pairScratch, 0);
+		return Hash256.of(pairScratch, 0);
+	}
+
+	/**
+	 * Hashes the UTF-8 encoding of the text. ASCII text is encoded straight into
+	 * a scratch buffer; anything else goes through String.getBytes
+	 */
+	public void hash(String text, byte[] out, int outOffset) {
+		int length = text.length();
+		if (textScratch.length < length) {
+			textScratch = new byte[Math.max(length, 2 * textScratch.length)];
+		}
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x80) {
+				byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+				hash(encoded, 0, encoded.length, out, outOffset);
+				return;
+			}
+			textScratch[i] = (byte) c;
+		}
+		hash(textScratch, 0, length, out, outOffset);
+	}
+
+	/**
+	 * @return the digest of the UTF-8 encoding of the text
+	 */
+	public Hash256 hash(String text) {
+		hash(text, pairScratch, 0);
+		return Hash256.of(pairScratch, 0);
+	}
+
+	/**
+	 * Merges two child digests into their parent digest: SHA-256 of the hex text
+	 * of each child, XOR-ed together. No String is created on the way
+	 */
+	public void combine(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] out, int outOffset) {
+		hexDigits(left, leftOffset, hexScratch, 0);
+		hash(hexScratch, 0, HEX_LENGTH, leftScratch, 0);
+		hexDigits(right, rightOffset, hexScratch, 0);
+		hash(hexScratch, 0, HEX_LENGTH, rightScratch, 0);
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			out[outOffset + i] = (byte) (leftScratch[i] ^ rightScratch[i]);
+		}
+	}
+
+	/**
+	 * @return the parent digest of two child digests
+	 */
+	public Hash256 combine(Hash256 left, Hash256 right) {
+		left.writeTo(pairScratch, 0);
+		right.writeTo(pairScratch, DIGEST_LENGTH);
+		combine(pairScratch, 0, pairScratch, DIGEST_LENGTH, pairScratch, 0);
+		return Hash256.of(pairScratch, 0);
+	}
+
+	/**
+	 * Same merge as combine() but for two arbitrary texts, which is what the
+	 * String based Utilities.cryptographicHashFunction(String, String) accepts
+	 */
+	public void combine(String left, String right, byte[] out, int outOffset) {
+		hash(left, leftScratch, 0);
+		hash(right, rightScratch, 0);
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			out[outOffset + i] = (byte) (leftScratch[i] ^ rightScratch[i]);
+		}
+	}
+
+	private void finish(byte[] out, int outOffset) {
+		try {
+			digest.digest(out, outOffset, DIGEST_LENGTH);
+		} catch (DigestException e) {
+			throw new RuntimeException("Digest buffer is too small", e);
+		}
+	}
+
+	/**
+	 * Writes the 64 lowercase hex characters of digest[offset, offset + 32) as
+	 * ASCII bytes into dest[destOffset, destOffset + 64)
+	 */
+	public static void hexDigits(byte[] digest, int offset, byte[] dest, int destOffset) {
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			int b = digest[offset + i] & 0xff;
+			dest[destOffset + 2 * i] = HEX_DIGITS[b >>> 4];
+			dest[destOffset + 2 * i + 1] = HEX_DIGITS[b & 0x0f];
+		}
+	}
+
+	/**
+	 * @return the 64-character lowercase hex form of digest[offset, offset + 32)
+	 */
+	public static String toHex(byte[] digest, int offset) {
+		byte[] hex = new byte[HEX_LENGTH];
+		hexDigits(digest, offset, hex, 0);
+		return new String(hex, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Parses a 64-character hex digest into out[outOffset, outOffset + 32)
+	 */
+	public static void fromHex(String hex, byte[] out, int outOffset) {
+		if (hex.length() != HEX_LENGTH) {
+			throw new RuntimeException("A SHA-256 hex digest has 64 characters: " + hex);
+		}
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			out[outOffset + i] = (byte) ((hexValue(hex.charAt(2 * i)) << 4) | hexValue(hex.charAt(2 * i + 1)));
+		}
+	}
+
+	private static int hexValue(char c) {
+		int value = Character.digit(c, 16);
+		if (value < 0) {
+			throw new RuntimeException("Invalid hex digit: " + c);
+		}
+		return value;
+	}
+}
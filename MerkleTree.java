@@ -1,4 +1,9 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 /**
 * - Represents the Merkle Tree of a single Block - You must implement all the
 * public methods in this template - Anything else you add must be private - Do
@@ -24,10 +29,46 @@ public class MerkleTree {
 	private Node root;
 	private int innerNodes;
 	private int height;
+	// leaf nodes of the real transactions by position, and position by leaf hash
+	private Node[] leaves;
+	private HashMap<Hash256, Integer> leafIndex;
+	// PADDING[k] is the hash of a subtree made of 2^k dummy leaves
+	private static final Hash256[] PADDING = new Hash256[32];
+	static {
+		PADDING[0] = Hash256.hashOf("DUMMY");
+		for (int k = 1; k < PADDING.length; k++) {
+			PADDING[k] = Hash256.combine(PADDING[k - 1], PADDING[k - 1]);
+		}
+	}
 	public MerkleTree(Block block) {
+		this(block, null, Integer.MAX_VALUE);
+	}
+	/**
+	 * Builds the tree in parallel on the common ForkJoinPool
+	 *
+	 * @param parallelCutoff is the number of leaves below which a subtree is
+	 * built sequentially by the task that reached it
+	 */
+	public MerkleTree(Block block, int parallelCutoff) {
+		this(block, ForkJoinPool.commonPool(), parallelCutoff);
+	}
+	/**
+	 * @param pool is the pool that hashes the subtrees concurrently, null
+	 * builds the whole tree on the calling thread
+	 *
+	 * @param parallelCutoff is the number of leaves below which a subtree is
+	 * built sequentially; blocks with no more leaves than this never touch
+	 * the pool
+	 *
+	 * The root hash is identical to the one of the sequential build
+	 */
+	public MerkleTree(Block block, ForkJoinPool pool, int parallelCutoff) {
 		if (block.numOfTransactions() < 0) {
 			throw new RuntimeException("You must have at least one transaction");
 		}
+		if (parallelCutoff < 1) {
+			throw new RuntimeException("The parallel cutoff must be positive");
+		}
 		root = null;
 		int blockSize = block.numOfTransactions();
 		int numOfNodes = 0;
@@ -39,34 +80,44 @@ public class MerkleTree {
 			numOfNodes = 2 * blockSize - 1;
 			innerNodes = numOfNodes - blockSize;
 		} else {
-			numOfNodes = 2 * findNextPowerOfTwo(blockSize) - 1;
-			innerNodes = numOfNodes - findNextPowerOfTwo(blockSize);
+			int leafCount = findNextPowerOfTwo(blockSize);
+			numOfNodes = 2 * leafCount - 1;
+			innerNodes = numOfNodes - leafCount;
 		}
 		// works with any binary tree, even if not perfect
 		height = (int) Math.ceil(Math.log(numOfNodes + 1) / Math.log(2)) - 1;
 		// similar result
 		// height = (int) Math.floor(Math.log(numOfNodes) / Math.log(2));
-		SinglyLinkedList<Integer> tempList = new SinglyLinkedList<>();
-		SinglyLinkedList<String> hashList = new SinglyLinkedList<>();
-		// create transactions hashes
+		// leaves past the end of the block are dummy nodes
+		Transaction[] transactions = new Transaction[blockSize];
+		int index = 0;
 		for (Transaction transaction : block) {
-			hashList.add(Utilities.cryptographicHashFunction(transaction.toString()));
+			transactions[index++] = transaction;
 		}
-		// add dummy nodes if needed
-		if (!isPowerOfTwo) {
-			for (int i = 0; i < findNextPowerOfTwo(blockSize) - blockSize; i++) {
-				hashList.add(Utilities.cryptographicHashFunction("DUMMY"));
-			}
+		leaves = new Node[blockSize];
+		// create the tree
+		if (pool == null || numOfNodes / 2 + 1 <= parallelCutoff) {
+			root = buildTree(0, numOfNodes - 1, null, transactions);
+		} else {
+			root = pool.invoke(new BuildTask(0, numOfNodes - 1, null, transactions, parallelCutoff));
 		}
-		// build empty list
-		for (int i = 0; i < numOfNodes; i++) {
-			tempList.add(i);
+		// index the leaves; the first occurrence wins, as the old left-first search did
+		leafIndex = new HashMap<>(Math.max(16, blockSize * 4 / 3 + 1));
+		for (int i = 0; i < blockSize; i++) {
+			leafIndex.putIfAbsent(leaves[i].data, i);
 		}
-		// create the tree
-		root = buildTree(tempList, 0, numOfNodes - 1, null, hashList);
 		// set root hash
 		block.setRootHash(root.data);
 	}
+	/**
+	 * @return the hash of a perfect subtree of 2^level dummy leaves; padded
+	 * regions of a tree take it instead of being hashed again
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	static Hash256 paddingHash(int level) {
+		return PADDING[level];
+	}
 	private int findNextPowerOfTwo(int number) {
 		int result = 1;
 		while (result < number)
@@ -76,30 +127,92 @@ public class MerkleTree {
 	private boolean isLeafNode(Node node) {
 		return node.left == null && node.right == null;
 	}
-	private Node buildTree(SinglyLinkedList<Integer> list, int start, int end, Node parent,
-			SinglyLinkedList<String> hashList) {
+	/**
+	 * Nodes are numbered in-order over the perfect tree, so the leaf at
+	 * position k has the even number 2k
+	 */
+	private Node buildTree(int start, int end, Node parent, Transaction[] transactions) {
 		// Base Case
 		if (start > end) {
 			return null;
 		}
+		// the leftmost leaf is already past the block, so is the whole subtree
+		if (start / 2 >= transactions.length) {
+			return paddingTree(start, end, parent);
+		}
 		// Get the middle node and make it parent
 		int mid = (start + end) / 2;
-		// Node node = new Node(Integer.toString(list.get(mid)));
 		Node node = new Node(null);
 		// build the left subtree
-		node.left = buildTree(list, start, mid - 1, node, hashList);
+		node.left = buildTree(start, mid - 1, node, transactions);
 		// build the right subtree
-		node.right = buildTree(list, mid + 1, end, node, hashList);
+		node.right = buildTree(mid + 1, end, node, transactions);
+		linkNode(node, parent, mid, transactions);
+		return node;
+	}
+	private void linkNode(Node node, Node parent, int mid, Transaction[] transactions) {
 		node.parent = parent;
 		if (isLeafNode(node)) {
-			node.data = hashList.remove(0);
+			int leaf = mid / 2;
+			if (leaf < transactions.length) {
+				node.data = transactions[leaf].leafHash();
+				leaves[leaf] = node;
+			} else {
+				node.data = PADDING[0];
+			}
 		} else {
-			node.data = Utilities.cryptographicHashFunction(node.left.data, node.right.data);
+			node.data = Hash256.combine(node.left.data, node.right.data);
+			node.left.sibling = node.right;
+			node.right.sibling = node.left;
+		}
+	}
+	// dummy-only subtree: same shape, cached hashes, nothing to hash
+	private Node paddingTree(int start, int end, Node parent) {
+		if (start > end) {
+			return null;
+		}
+		int mid = (start + end) / 2;
+		Node node = new Node(PADDING[Integer.numberOfTrailingZeros((end - start) / 2 + 1)]);
+		node.parent = parent;
+		node.left = paddingTree(start, mid - 1, node);
+		node.right = paddingTree(mid + 1, end, node);
+		if (node.left != null) {
 			node.left.sibling = node.right;
 			node.right.sibling = node.left;
 		}
 		return node;
 	}
+	// builds the left subtree in a forked task while this one builds the right
+	private class BuildTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+		private final Node parent;
+		private final Transaction[] transactions;
+		private final int parallelCutoff;
+		BuildTask(int start, int end, Node parent, Transaction[] transactions, int parallelCutoff) {
+			this.start = start;
+			this.end = end;
+			this.parent = parent;
+			this.transactions = transactions;
+			this.parallelCutoff = parallelCutoff;
+		}
+		@Override
+		protected Node compute() {
+			if ((end - start) / 2 + 1 <= parallelCutoff || start / 2 >= transactions.length) {
+				return buildTree(start, end, parent, transactions);
+			}
+			int mid = (start + end) / 2;
+			Node node = new Node(null);
+			BuildTask leftTask = new BuildTask(start, mid - 1, node, transactions, parallelCutoff);
+			leftTask.fork();
+			node.right = new BuildTask(mid + 1, end, node, transactions, parallelCutoff).compute();
+			node.left = leftTask.join();
+			linkNode(node, parent, mid, transactions);
+			return node;
+		}
+	}
 	/**
 	 * @return the height of the tree
 	 *
@@ -122,11 +235,11 @@ public class MerkleTree {
 	 *
 	 * TIME COMPLEXITY REQUIREMENT: O(N)
 	 */
-	public SinglyLinkedList<String> breadthFirstTraversal() {
+	public SinglyLinkedList<Hash256> breadthFirstTraversal() {
 		return breadthFirstTraversal(root);
 	}
-	private SinglyLinkedList<String> breadthFirstTraversal(Node node) {
-		SinglyLinkedList<String> list = new SinglyLinkedList<>();
+	private SinglyLinkedList<Hash256> breadthFirstTraversal(Node node) {
+		SinglyLinkedList<Hash256> list = new SinglyLinkedList<>();
 		if (node == null) {
 			return null;
 		}
@@ -156,8 +269,8 @@ public class MerkleTree {
 	 *
 	 * TIME COMPLEXITY REQUIREMENT: O(N)
 	 */
-	public SinglyLinkedList<String> depthFirstTraversal(Order order) {
-		SinglyLinkedList<String> returnList = new SinglyLinkedList<>();
+	public SinglyLinkedList<Hash256> depthFirstTraversal(Order order) {
+		SinglyLinkedList<Hash256> returnList = new SinglyLinkedList<>();
 		switch (order) {
 		case PREORDER: {
 			preOrder(root, returnList);
@@ -176,7 +289,7 @@ public class MerkleTree {
 		}
 		return returnList;
 	}
-	private void inOrder(Node node, SinglyLinkedList<String> list) {
+	private void inOrder(Node node, SinglyLinkedList<Hash256> list) {
 		if (node == null) {
 			return;
 		}
@@ -184,7 +297,7 @@ public class MerkleTree {
 		list.add(node.data);
 		inOrder(node.right, list);
 	}
-	private void preOrder(Node node, SinglyLinkedList<String> list) {
+	private void preOrder(Node node, SinglyLinkedList<Hash256> list) {
 		if (node == null) {
 			return;
 		}
@@ -192,7 +305,7 @@ public class MerkleTree {
 		preOrder(node.left, list);
 		preOrder(node.right, list);
 	}
-	private void postOrder(Node node, SinglyLinkedList<String> list) {
+	private void postOrder(Node node, SinglyLinkedList<Hash256> list) {
 		if (node == null) {
 			return;
 		}
@@ -200,20 +313,6 @@ public class MerkleTree {
 		postOrder(node.right, list);
 		list.add(node.data);
 	}
-	private Node findNode(Node node, String hash) {
-		// base case
-		if (node == null || node.data.equals(hash))
-			return node;
-		Node findLeft = findNode(node.left, hash);
-		if (findLeft != null) {
-			return findLeft;
-		}
-		Node findRight = findNode(node.right, hash);
-		if (findRight != null) {
-			return findRight;
-		}
-		return null;
-	}
 	/**
 	 * @return a list of the hash codes that are required to prove that a
 	 * transaction is contained in the block that this Merkle Tree encodes.
@@ -226,18 +325,117 @@ public class MerkleTree {
 	 * You MUST use recursion for this method; zero points if it's not
 	 * recursive!
 	 *
-	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 * The leaf is found through the leaf index built with the tree, so a
+	 * transaction that is not in the block costs a single hash lookup
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(logN)
+	 */
+	public SinglyLinkedList<Hash256> extractProof(Transaction t) {
+		return extractProof(leafPosition(t));
+	}
+	/**
+	 * @return the proof of the leaf at the given position in the block, for
+	 * callers that already know where the transaction is; empty for a
+	 * position outside the block
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(logN)
 	 */
-	public SinglyLinkedList<String> extractProof(Transaction t) {
-		SinglyLinkedList<String> returnList = new SinglyLinkedList<>();
-		String transactionHash = Utilities.cryptographicHashFunction(t.toString());
-		Node leafNode = findNode(root, transactionHash);
-		if (leafNode != null) {
-			generateList(leafNode, returnList);
+	public SinglyLinkedList<Hash256> extractProof(int leafPosition) {
+		SinglyLinkedList<Hash256> returnList = new SinglyLinkedList<>();
+		if (leafPosition >= 0 && leafPosition < leaves.length) {
+			generateList(leaves[leafPosition], returnList);
 		}
 		return returnList;
 	}
-	private void generateList(Node currentNode, SinglyLinkedList<String> returnList) {
+	/**
+	 * @return the hash of the leaf at the given position in the block
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public Hash256 leafHash(int leafPosition) {
+		if (leafPosition < 0 || leafPosition >= leaves.length) {
+			throw new IndexOutOfBoundsException("Leaf " + leafPosition + " out of bounds for " + leaves.length + " leaves");
+		}
+		return leaves[leafPosition].data;
+	}
+	/**
+	 * @return true if the transaction is one of the leaves of this tree
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public boolean contains(Transaction t) {
+		return leafPosition(t) >= 0;
+	}
+	/**
+	 * @return the position of the transaction among the leaves (its index in
+	 * the block), or -1 if the transaction is not in the block
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1)
+	 */
+	public int leafPosition(Transaction t) {
+		Integer leaf = leafIndex.get(t.leafHash());
+		return leaf == null ? -1 : leaf;
+	}
+	/**
+	 * @return a single proof for all the given transactions. Siblings shared
+	 * by several of them are stored once, and siblings that are themselves on
+	 * the path of another proven transaction are left out because the
+	 * verifier recomputes them
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(K logN) for K transactions
+	 */
+	public MultiProof extractMultiProof(Iterable<Transaction> transactions) {
+		ArrayList<Integer> requested = new ArrayList<>();
+		for (Transaction t : transactions) {
+			requested.add(leafPosition(t));
+		}
+		int[] leafPositions = new int[requested.size()];
+		int present = 0;
+		for (int i = 0; i < leafPositions.length; i++) {
+			leafPositions[i] = requested.get(i);
+			if (leafPositions[i] >= 0) {
+				present++;
+			}
+		}
+		// distinct proven positions in ascending order, with their nodes
+		int[] positions = new int[present];
+		present = 0;
+		for (int position : leafPositions) {
+			if (position >= 0) {
+				positions[present++] = position;
+			}
+		}
+		Arrays.sort(positions);
+		int count = 0;
+		for (int i = 0; i < present; i++) {
+			if (count == 0 || positions[count - 1] != positions[i]) {
+				positions[count++] = positions[i];
+			}
+		}
+		Node[] nodes = new Node[count];
+		for (int i = 0; i < count; i++) {
+			nodes[i] = leaves[positions[i]];
+		}
+		ArrayList<Hash256> hashes = new ArrayList<>();
+		for (int level = 0; level < height && count > 0; level++) {
+			int next = 0;
+			for (int i = 0; i < count; i++) {
+				// both children known: the parent is recomputed, no hash needed
+				if (i + 1 < count && positions[i + 1] == (positions[i] ^ 1)) {
+					positions[next] = positions[i] >> 1;
+					nodes[next++] = nodes[i].parent;
+					i++;
+				} else {
+					hashes.add(nodes[i].sibling.data);
+					positions[next] = positions[i] >> 1;
+					nodes[next++] = nodes[i].parent;
+				}
+			}
+			count = next;
+		}
+		return new MultiProof(height, leafPositions, hashes.toArray(new Hash256[0]));
+	}
+	private void generateList(Node currentNode, SinglyLinkedList<Hash256> returnList) {
 		// base case root node
 		if (currentNode.parent == null) {
 			return;
@@ -248,12 +446,12 @@ public class MerkleTree {
 	}
 	// private node class
 	private class Node {
-		String data;
+		Hash256 data;
 		Node left;
 		Node right;
 		Node parent;
 		Node sibling;
-		public Node(String data) {
+		public Node(Hash256 data) {
 			this.data = data;
 			this.left = null;
 			this.right = null;
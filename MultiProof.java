@@ -0,0 +1,61 @@
+/**
+ * - Inclusion proof for several transactions of the same block at once
+ * - Holds, for every requested transaction, its leaf position in the Merkle
+ * tree (-1 if the transaction is not in the block), plus the sibling hashes
+ * that cannot be recomputed from the proven leaves themselves
+ * - Each sibling hash appears once even when several proven leaves share it;
+ * hashes are ordered bottom-up, and from left to right within a level
+ * - Created by MerkleTree.extractMultiProof and checked by
+ * Utilities.verifyTransactions
+ */
+public final class MultiProof {
+	private final int height;
+	private final int[] leafPositions;
+	private final Hash256[] hashes;
+
+	/**
+	 * @param height        is the height of the Merkle tree the proof was taken
+	 *                      from
+	 * @param leafPositions holds the leaf position of each requested
+	 *                      transaction, -1 for the ones that are not in the block
+	 * @param hashes        are the sibling hashes, bottom-up and left to right
+	 */
+	public MultiProof(int height, int[] leafPositions, Hash256[] hashes) {
+		if (height < 0 || height > 30) {
+			throw new RuntimeException("Invalid Merkle tree height: " + height);
+		}
+		this.height = height;
+		this.leafPositions = leafPositions.clone();
+		this.hashes = hashes.clone();
+	}
+
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @return the number of transactions the proof was requested for
+	 */
+	public int size() {
+		return leafPositions.length;
+	}
+
+	/**
+	 * @return the leaf position of the i-th requested transaction, or -1 if it
+	 *         is not in the block
+	 */
+	public int leafPosition(int i) {
+		return leafPositions[i];
+	}
+
+	/**
+	 * @return the number of sibling hashes carried by the proof
+	 */
+	public int numOfHashes() {
+		return hashes.length;
+	}
+
+	public Hash256 hash(int i) {
+		return hashes[i];
+	}
+}
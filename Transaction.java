@@ -1,3 +1,5 @@
+import java.nio.charset.StandardCharsets;
+
 /**
     - This class represents a single transaction
     - Do NOT edit the provided methods
@@ -10,6 +12,8 @@ public class Transaction implements Comparable<Transaction>
     private String receiver;
     private int amount;
     private int fee;
+    // Merkle leaf hash, computed on first use
+    private Hash256 leafHash;
     
     public Transaction(String sender, String receiver, int amount, int fee)
     {
@@ -19,6 +23,16 @@ public class Transaction implements Comparable<Transaction>
         this.fee = fee;
     }
 
+    /**
+        Same as the constructor above with the sender and receiver replaced by their canonical
+        instances in the dictionary, so transactions between the same addresses share the
+        same Strings
+    */
+    public Transaction(AddressDictionary addresses, String sender, String receiver, int amount, int fee)
+    {
+        this(addresses.intern(sender), addresses.intern(receiver), amount, fee);
+    }
+
     public String toString()
     {
         return String.format("%s %s %d %d", sender, receiver, amount, fee);
@@ -29,6 +43,96 @@ public class Transaction implements Comparable<Transaction>
         return fee;
     }
 
+    public String getSender()
+    {
+        return sender;
+    }
+
+    public String getReceiver()
+    {
+        return receiver;
+    }
+
+    public int getAmount()
+    {
+        return amount;
+    }
+
+    /**
+     * @return the canonical encoding of the transaction, the UTF-8 bytes of
+     *         toString(), built without String.format or an intermediate String
+     */
+    public byte[] encode()
+    {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] receiverBytes = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] encoding = new byte[encodedLength(senderBytes, receiverBytes, amount, fee)];
+        encode(senderBytes, receiverBytes, amount, fee, encoding, 0);
+        return encoding;
+    }
+
+    /**
+     * @return the hash of the transaction as a leaf of a Merkle tree, the
+     *         SHA-256 of encode(). It is computed once; the transaction is
+     *         immutable, so every later call returns the cached digest
+     */
+    public Hash256 leafHash()
+    {
+        Hash256 hash = leafHash;
+        if (hash == null) {
+            // Hash256 is immutable, so a racy first computation is harmless
+            hash = Hash256.hashOf(encode());
+            leafHash = hash;
+        }
+        return hash;
+    }
+
+    // length of encode() from the UTF-8 bytes of the names, shared with the column store
+    static int encodedLength(byte[] sender, byte[] receiver, int amount, int fee)
+    {
+        return sender.length + receiver.length + 3 + decimalLength(amount) + decimalLength(fee);
+    }
+
+    // writes encode() at dest[offset] and returns the position after it
+    static int encode(byte[] sender, byte[] receiver, int amount, int fee, byte[] dest, int offset)
+    {
+        System.arraycopy(sender, 0, dest, offset, sender.length);
+        int position = offset + sender.length;
+        dest[position++] = ' ';
+        System.arraycopy(receiver, 0, dest, position, receiver.length);
+        position += receiver.length;
+        dest[position++] = ' ';
+        position = putDecimal(amount, dest, position);
+        dest[position++] = ' ';
+        return putDecimal(fee, dest, position);
+    }
+
+    private static int decimalLength(int value)
+    {
+        long rest = Math.abs((long) value);
+        int length = value < 0 ? 2 : 1;
+        while (rest >= 10) {
+            rest /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    // writes the ASCII digits of the value at position and returns the position after them
+    private static int putDecimal(int value, byte[] dest, int position)
+    {
+        int end = position + decimalLength(value);
+        long rest = Math.abs((long) value);
+        if (value < 0) {
+            dest[position] = '-';
+        }
+        for (int i = end - 1; i >= position + (value < 0 ? 1 : 0); i--) {
+            dest[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return end;
+    }
+
 	@Override
 	public int compareTo(Transaction o) {
 		// TODO Auto-generated method stub
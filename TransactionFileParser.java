@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * - Streaming parser for transaction text files ("sender receiver amount fee"
+ * records separated by any whitespace, the format Utilities.loadTransactions
+ * reads)
+ * - The file is memory-mapped in windows and parsed byte by byte: amounts and
+ * fees are accumulated directly as ints and no regex or Scanner is involved
+ * - A parser given an AddressDictionary looks names up in it straight from
+ * the read buffer, so a String is only created the first time an address
+ * appears. Without one, every name is decoded on its own and the parser
+ * keeps nothing between records
+ * - Each record is handed to a consumer as soon as it is complete, so files
+ * larger than the heap can be processed
+ * - Malformed records are reported with the line they start on
+ */
+public class TransactionFileParser {
+	private static final long WINDOW_SIZE = 64L << 20;
+
+	private final Path path;
+	private final AddressDictionary addresses;
+	private byte[] token;
+	private int tokenLength;
+
+	public TransactionFileParser(String fileName) {
+		this(Paths.get(fileName));
+	}
+
+	public TransactionFileParser(Path path) {
+		this(path, null);
+	}
+
+	/**
+	 * @param addresses is the dictionary the sender and receiver names are
+	 *                  interned in; sharing one between files shares the names.
+	 *                  It holds every distinct address, null interns nothing
+	 */
+	public TransactionFileParser(String fileName, AddressDictionary addresses) {
+		this(Paths.get(fileName), addresses);
+	}
+
+	public TransactionFileParser(Path path, AddressDictionary addresses) {
+		this.path = path;
+		this.addresses = addresses;
+		this.token = new byte[64];
+	}
+
+	/**
+	 * @return the dictionary holding the names of the parsed transactions, or
+	 *         null if the parser does not intern them
+	 */
+	public AddressDictionary addresses() {
+		return addresses;
+	}
+
+	/**
+	 * Parses the whole file and passes every transaction to the consumer in file
+	 * order
+	 *
+	 * @return the number of transactions parsed
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public long forEach(Consumer<Transaction> consumer) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return parse(channel, consumer);
+		} catch (NoSuchFileException e) {
+			throw new RuntimeException("File not found: " + path, e);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + path + ": " + e.getMessage(), e);
+		}
+	}
+
+	private long parse(FileChannel channel, Consumer<Transaction> consumer) throws IOException {
+		long fileSize = channel.size();
+		long count = 0;
+		long line = 1;
+		long recordLine = 1;
+		int field = 0;
+		String sender = null;
+		String receiver = null;
+		int amount = 0;
+		tokenLength = 0;
+		for (long base = 0; base < fileSize; base += WINDOW_SIZE) {
+			long length = Math.min(WINDOW_SIZE, fileSize - base);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+			for (int i = 0; i < length; i++) {
+				byte b = window.get(i);
+				if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0x0b) {
+					if (tokenLength > 0) {
+						// a token just ended
+						switch (field) {
+						case 0:
+							sender = name();
+							break;
+						case 1:
+							receiver = name();
+							break;
+						case 2:
+							amount = parseInt(recordLine, "amount");
+							break;
+						default:
+							consumer.accept(new Transaction(sender, receiver, amount, parseInt(recordLine, "fee")));
+							count++;
+							break;
+						}
+						field = (field + 1) % 4;
+						tokenLength = 0;
+					}
+					if (b == '\n') {
+						line++;
+					}
+				} else {
+					if (tokenLength == 0 && field == 0) {
+						recordLine = line;
+					}
+					if (tokenLength == token.length) {
+						token = Arrays.copyOf(token, 2 * token.length);
+					}
+					token[tokenLength++] = b;
+				}
+			}
+		}
+		// the last token may run up to the end of the file
+		if (tokenLength > 0) {
+			if (field != 3) {
+				throw malformed(recordLine, "record has " + (field + 1) + " of 4 fields");
+			}
+			consumer.accept(new Transaction(sender, receiver, amount, parseInt(recordLine, "fee")));
+			count++;
+		} else if (field != 0) {
+			throw malformed(recordLine, "record has " + field + " of 4 fields");
+		}
+		return count;
+	}
+
+	// the current token as an address
+	private String name() {
+		if (addresses == null) {
+			return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+		}
+		return addresses.intern(token, 0, tokenLength);
+	}
+
+	// parses the current token as a decimal int with an optional sign
+	private int parseInt(long recordLine, String name) {
+		int i = 0;
+		boolean negative = false;
+		if (token[0] == '-' || token[0] == '+') {
+			negative = token[0] == '-';
+			i = 1;
+		}
+		if (i == tokenLength) {
+			throw malformed(recordLine, "invalid " + name + " " + tokenText());
+		}
+		long value = 0;
+		for (; i < tokenLength; i++) {
+			int digit = token[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw malformed(recordLine, "invalid " + name + " " + tokenText());
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				throw malformed(recordLine, name + " out of range " + tokenText());
+			}
+		}
+		if (negative) {
+			value = -value;
+		}
+		if (value > Integer.MAX_VALUE) {
+			throw malformed(recordLine, name + " out of range " + tokenText());
+		}
+		return (int) value;
+	}
+
+	private String tokenText() {
+		return "\"" + new String(token, 0, tokenLength, StandardCharsets.UTF_8) + "\"";
+	}
+
+	private RuntimeException malformed(long line, String message) {
+		return new RuntimeException("Malformed transaction at " + path + " line " + line + ": " + message);
+	}
+}
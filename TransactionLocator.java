@@ -0,0 +1,253 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * - Chain-wide index from the leaf hash of a transaction to where it is: the
+ * number of its block and its leaf position in that block
+ * - Blocks are indexed in chain order and only appended; a transaction that
+ * appears more than once is located at its first occurrence
+ * - Open addressing over a Hash256 array and a parallel long array of
+ * locations, probed with bits of the digest itself
+ * - The index can be saved to a file and loaded back instead of rehashing
+ * every transaction of the chain
+ * - File layout (big-endian): int magic "TLX1", int version, int block count,
+ * int entry count, the transaction count of every block, then per entry the
+ * 32-byte leaf hash, int block and int leaf, and a long CRC32 of all that
+ */
+public class TransactionLocator {
+	public static final int MAGIC = 0x544c5831;
+	public static final int VERSION = 1;
+
+	private Hash256[] keys;
+	private long[] locations;
+	private int size;
+	private int[] blockSizes;
+	private int numOfBlocks;
+
+	public TransactionLocator() {
+		keys = new Hash256[16];
+		locations = new long[16];
+		size = 0;
+		blockSizes = new int[16];
+		numOfBlocks = 0;
+	}
+
+	/**
+	 * Indexes the transactions of the next block of the chain
+	 *
+	 * @return the number the block got
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N) for a block of N transactions
+	 */
+	public int add(Block block) {
+		int number = numOfBlocks;
+		int leaf = 0;
+		for (Transaction t : block) {
+			put(t.leafHash(), location(number, leaf++));
+		}
+		addBlock(leaf);
+		return number;
+	}
+
+	/**
+	 * Indexes the next block of the chain from the leaf hashes of its
+	 * transactions, in block order, e.g. as read from a BlockStore
+	 *
+	 * @return the number the block got
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N) for a block of N transactions
+	 */
+	public int add(Hash256[] leafHashes) {
+		int number = numOfBlocks;
+		for (int leaf = 0; leaf < leafHashes.length; leaf++) {
+			put(leafHashes[leaf], location(number, leaf));
+		}
+		addBlock(leafHashes.length);
+		return number;
+	}
+
+	/**
+	 * @return the location of the transaction, or -1 if it is in no indexed
+	 *         block. blockOf() and leafOf() take it apart
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(1) expected
+	 */
+	public long locate(Transaction t) {
+		return locate(t.leafHash());
+	}
+
+	public long locate(Hash256 leafHash) {
+		int mask = keys.length - 1;
+		int slot = (int) leafHash.high() & mask;
+		while (keys[slot] != null) {
+			if (keys[slot].equals(leafHash)) {
+				return locations[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public static int blockOf(long location) {
+		return (int) (location >>> 32);
+	}
+
+	public static int leafOf(long location) {
+		return (int) location;
+	}
+
+	/**
+	 * @return the number of indexed blocks
+	 */
+	public int numOfBlocks() {
+		return numOfBlocks;
+	}
+
+	/**
+	 * @return the number of transactions of an indexed block
+	 */
+	public int blockSize(int block) {
+		if (block < 0 || block >= numOfBlocks) {
+			throw new IndexOutOfBoundsException("Block " + block + " out of bounds for " + numOfBlocks + " blocks");
+		}
+		return blockSizes[block];
+	}
+
+	/**
+	 * @return the number of distinct indexed transactions
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public void save(Path file) {
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(
+				new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16), crc))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numOfBlocks);
+			out.writeInt(size);
+			for (int b = 0; b < numOfBlocks; b++) {
+				out.writeInt(blockSizes[b]);
+			}
+			byte[] digest = new byte[HashEngine.DIGEST_LENGTH];
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != null) {
+					keys[slot].writeTo(digest, 0);
+					out.write(digest);
+					out.writeLong(locations[slot]);
+				}
+			}
+			out.flush();
+			// the checksum covers everything before it
+			out.writeLong(crc.getValue());
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public static TransactionLocator load(Path file) {
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(
+				new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16), crc))) {
+			if (in.readInt() != MAGIC) {
+				throw new RuntimeException("Not a transaction index: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new RuntimeException("Unsupported transaction index version " + version + ": " + file);
+			}
+			int blocks = in.readInt();
+			int entries = in.readInt();
+			if (blocks < 0 || entries < 0) {
+				throw new RuntimeException("Transaction index is damaged: " + file);
+			}
+			TransactionLocator locator = new TransactionLocator();
+			for (int b = 0; b < blocks; b++) {
+				locator.addBlock(in.readInt());
+			}
+			byte[] digest = new byte[HashEngine.DIGEST_LENGTH];
+			for (int i = 0; i < entries; i++) {
+				in.readFully(digest);
+				locator.put(Hash256.of(digest, 0), in.readLong());
+			}
+			long expected = crc.getValue();
+			if (in.readLong() != expected) {
+				throw new RuntimeException("Checksum mismatch in transaction index: " + file);
+			}
+			return locator;
+		} catch (NoSuchFileException e) {
+			throw new RuntimeException("File not found: " + file, e);
+		} catch (EOFException e) {
+			throw new RuntimeException("Transaction index is truncated: " + file, e);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static long location(int block, int leaf) {
+		return ((long) block << 32) | (leaf & 0xffffffffL);
+	}
+
+	private void addBlock(int transactions) {
+		if (numOfBlocks == blockSizes.length) {
+			blockSizes = Arrays.copyOf(blockSizes, 2 * numOfBlocks);
+		}
+		blockSizes[numOfBlocks++] = transactions;
+	}
+
+	// keeps the first location of a leaf hash
+	private void put(Hash256 key, long location) {
+		int mask = keys.length - 1;
+		int slot = (int) key.high() & mask;
+		while (keys[slot] != null) {
+			if (keys[slot].equals(key)) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		locations[slot] = location;
+		size++;
+		// load factor at most three quarters
+		if (4 * size > 3 * keys.length) {
+			rehash();
+		}
+	}
+
+	private void rehash() {
+		Hash256[] oldKeys = keys;
+		long[] oldLocations = locations;
+		keys = new Hash256[2 * oldKeys.length];
+		locations = new long[keys.length];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = (int) oldKeys[i].high() & mask;
+				while (keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				locations[slot] = oldLocations[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,431 @@
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * - Column store for large transaction sets: every transaction is a row of
+ * four parallel int arrays (sender id, receiver id, amount, fee) instead of a
+ * Transaction object
+ * - Sender and receiver names are kept once in an AddressDictionary and
+ * referenced by id, so a row costs 16 bytes however long the names are
+ * - feeOrder() gives the rows in the order a PriorityLine filled in row order
+ * dequeues them; blocks are planned, ordered and hashed on row indexes, and a
+ * Transaction object is created only when a Block is materialized
+ * - Roots computed from the rows are identical to the ones of MerkleTree
+ */
+public class TransactionTable {
+	private int[] senders;
+	private int[] receivers;
+	private int[] amounts;
+	private int[] fees;
+	private int size;
+	private final AddressDictionary addresses;
+
+	public TransactionTable() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity is the number of rows allocated up front
+	 */
+	public TransactionTable(int capacity) {
+		if (capacity < 1) {
+			throw new RuntimeException("The capacity must be positive");
+		}
+		senders = new int[capacity];
+		receivers = new int[capacity];
+		amounts = new int[capacity];
+		fees = new int[capacity];
+		size = 0;
+		addresses = new AddressDictionary();
+	}
+
+	/**
+	 * Loads a transaction file in the text format, one row per record in file
+	 * order
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public static TransactionTable load(String fileName) {
+		TransactionTable table = new TransactionTable();
+		new TransactionFileParser(fileName, table.addresses).forEach(table::add);
+		return table;
+	}
+
+	/**
+	 * @return the row of the new transaction
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(1) amortized
+	 */
+	public int add(String sender, String receiver, int amount, int fee) {
+		if (size == fees.length) {
+			int capacity = size > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE - 8 : 2 * size;
+			if (capacity <= size) {
+				throw new RuntimeException("The transaction table is full");
+			}
+			senders = Arrays.copyOf(senders, capacity);
+			receivers = Arrays.copyOf(receivers, capacity);
+			amounts = Arrays.copyOf(amounts, capacity);
+			fees = Arrays.copyOf(fees, capacity);
+		}
+		senders[size] = addresses.idOf(sender);
+		receivers[size] = addresses.idOf(receiver);
+		amounts[size] = amount;
+		fees[size] = fee;
+		return size++;
+	}
+
+	public int add(Transaction t) {
+		return add(t.getSender(), t.getReceiver(), t.getAmount(), t.getFee());
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of distinct sender and receiver names
+	 */
+	public int numOfNames() {
+		return addresses.size();
+	}
+
+	/**
+	 * @return the dictionary the sender and receiver ids refer to
+	 */
+	public AddressDictionary addresses() {
+		return addresses;
+	}
+
+	public int fee(int row) {
+		return fees[check(row)];
+	}
+
+	public int amount(int row) {
+		return amounts[check(row)];
+	}
+
+	public int senderId(int row) {
+		return senders[check(row)];
+	}
+
+	public int receiverId(int row) {
+		return receivers[check(row)];
+	}
+
+	/**
+	 * @return the name with the given dictionary id
+	 */
+	public String name(int id) {
+		return addresses.name(id);
+	}
+
+	public String sender(int row) {
+		return addresses.name(senderId(row));
+	}
+
+	public String receiver(int row) {
+		return addresses.name(receiverId(row));
+	}
+
+	/**
+	 * @return a new Transaction object for the row
+	 */
+	public Transaction transaction(int row) {
+		return new Transaction(sender(row), receiver(row), amount(row), fee(row));
+	}
+
+	/**
+	 * @return the Merkle leaf hash of the row, the same as
+	 *         transaction(row).leafHash()
+	 */
+	public Hash256 leafHash(int row) {
+		byte[] encoding = new byte[encodedLength(check(row))];
+		encode(row, encoding);
+		return Hash256.hashOf(encoding);
+	}
+
+	/**
+	 * @return the sum of the fees of every row
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public long totalFees() {
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			total += fees[i];
+		}
+		return total;
+	}
+
+	/**
+	 * @return every row, highest fee first and later rows first among equal
+	 *         fees, which is the order a PriorityLine filled in row order
+	 *         dequeues them in
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(NlogN)
+	 */
+	public int[] feeOrder() {
+		// fee descending in the high half, row descending in the low half, so a
+		// plain primitive sort of the keys does the job
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) ~fees[i] << 32) | (Integer.MAX_VALUE - i);
+		}
+		Arrays.parallelSort(keys);
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = Integer.MAX_VALUE - (int) keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * Splits a fee order into blocks with the packing rule of the Blockchain
+	 * constructor
+	 *
+	 * @return the start index in the order of every block followed by its
+	 *         length, so block b holds order[result[b]] to order[result[b + 1] - 1]
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public int[] blockBoundaries(int[] order, int threshold) {
+		if (threshold < 1) {
+			// the packing loop never ends for such thresholds
+			throw new RuntimeException("The fee threshold must be positive");
+		}
+		int[] result = new int[16];
+		int count = 0;
+		int end = 0;
+		while (end < order.length) {
+			if (count == result.length) {
+				result = Arrays.copyOf(result, 2 * count);
+			}
+			result[count++] = end;
+			int cummulativeFees = 0;
+			while (end < order.length && cummulativeFees < threshold) {
+				cummulativeFees += fees[order[end++]];
+			}
+		}
+		if (count == result.length) {
+			result = Arrays.copyOf(result, count + 1);
+		}
+		result[count++] = order.length;
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @return the rows order[from] to order[to - 1] in the order a Block keeps
+	 *         them, i.e. the order Block.addTransactions leaves them in
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(K) for K rows
+	 */
+	public int[] blockRows(int[] order, int from, int to) {
+		int[] rows = Arrays.copyOfRange(order, from, to);
+		// equal fees come newest first from the queue and end up oldest first
+		int start = 0;
+		for (int i = 1; i <= rows.length; i++) {
+			if (i == rows.length || fees[rows[i]] != fees[rows[start]]) {
+				for (int a = start, b = i - 1; a < b; a++, b--) {
+					int row = rows[a];
+					rows[a] = rows[b];
+					rows[b] = row;
+				}
+				start = i;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the Merkle root of a block holding the rows in the given order,
+	 *         the same as the root of its MerkleTree, or null for no rows
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(K) for K rows
+	 */
+	public Hash256 merkleRoot(int[] rows) {
+		if (rows.length == 0) {
+			return null;
+		}
+		final int digest = HashEngine.DIGEST_LENGTH;
+		HashEngine engine = HashEngine.get();
+		byte[] level = new byte[(rows.length + 1) * digest];
+		// leaves are hashed from the column bytes, no String or Transaction per row
+		byte[] encoding = new byte[64];
+		for (int i = 0; i < rows.length; i++) {
+			int length = encodedLength(check(rows[i]));
+			if (encoding.length < length) {
+				encoding = new byte[Math.max(length, 2 * encoding.length)];
+			}
+			encode(rows[i], encoding);
+			engine.hash(encoding, 0, length, level, i * digest);
+		}
+		// one level at a time, in place; an odd node pairs with a padding subtree
+		int nodes = rows.length;
+		for (int height = 0; nodes > 1; height++) {
+			if ((nodes & 1) == 1) {
+				MerkleTree.paddingHash(height).writeTo(level, nodes * digest);
+			}
+			int parents = (nodes + 1) / 2;
+			for (int i = 0; i < parents; i++) {
+				engine.combine(level, 2 * i * digest, level, (2 * i + 1) * digest, level, i * digest);
+			}
+			nodes = parents;
+		}
+		return Hash256.of(level, 0);
+	}
+
+	/**
+	 * Materializes a block from rows given in block order, with its root hash
+	 * already set from the columns so it does not need a MerkleTree to be sealed
+	 *
+	 * TIME COMPLEXITY REQUIREMENT: O(K) for K rows
+	 */
+	public Block toBlock(int[] rows) {
+		ArrayList<Transaction> transactions = new ArrayList<>(rows.length);
+		for (int row : rows) {
+			transactions.add(transaction(row));
+		}
+		// the rows are in block order already, addTransactions would reverse the ties again
+		return new Block(transactions, merkleRoot(rows));
+	}
+
+	/**
+	 * @return the chain the Blockchain constructor builds from a PriorityLine
+	 *         filled with the rows in row order, with every block already sealed
+	 *
+	 *         TIME COMPLEXITY REQUIREMENT: O(NlogN)
+	 */
+	public Blockchain toBlockchain(int threshold) {
+		int[] order = feeOrder();
+		int[] bounds = blockBoundaries(order, threshold);
+		Block[] blocks = new Block[bounds.length - 1];
+		for (int b = 0; b < blocks.length; b++) {
+			blocks[b] = toBlock(blockRows(order, bounds[b], bounds[b + 1]));
+		}
+		return new Blockchain(blocks);
+	}
+
+	/**
+	 * @return the transactions of the rows in the given order, created one at a
+	 *         time as the iterator advances. Over feeOrder() this is a stream
+	 *         the Blockchain(Iterator, int) constructor accepts
+	 */
+	public Iterator<Transaction> iterator(int[] rows) {
+		return new Iterator<Transaction>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < rows.length;
+			}
+
+			@Override
+			public Transaction next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return transaction(rows[next++]);
+			}
+		};
+	}
+
+	// the bytes Transaction.encode() gives for the row, from the dictionary's encodings
+	private int encodedLength(int row) {
+		return Transaction.encodedLength(addresses.encoding(senders[row]), addresses.encoding(receivers[row]),
+				amounts[row], fees[row]);
+	}
+
+	private void encode(int row, byte[] dest) {
+		Transaction.encode(addresses.encoding(senders[row]), addresses.encoding(receivers[row]), amounts[row],
+				fees[row], dest, 0);
+	}
+
+	private int check(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " out of bounds for " + size + " rows");
+		}
+		return row;
+	}
+
+	/**
+	 * Loads the file given as first argument into a table and into Transaction
+	 * objects, prints the heap each of them takes and checks that the chain
+	 * built from the columns (threshold from the second argument, default 1000)
+	 * matches the one built from a PriorityLine. Both chains are built a few
+	 * times from fresh inputs, so the times printed are past the JIT warm-up
+	 */
+	public static void main(String[] args) {
+		String file = args[0];
+		int threshold = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rounds = 3;
+		Runtime runtime = Runtime.getRuntime();
+
+		long before = usedHeap(runtime);
+		TransactionTable table = load(file);
+		long tableBytes = usedHeap(runtime) - before;
+		before = usedHeap(runtime);
+		PriorityLine<Transaction> queue = Utilities.loadTransactions(file);
+		long objectBytes = usedHeap(runtime) - before;
+		// the queue must still be reachable while its heap is measured
+		Reference.reachabilityFence(queue);
+		int n = Math.max(1, table.size());
+		System.out.println(String.format("rows: %d  %s  table: %d bytes/tx  objects: %d bytes/tx", table.size(),
+				table.addresses(), tableBytes / n, objectBytes / n));
+
+		long columnTime = Long.MAX_VALUE;
+		long objectTime = Long.MAX_VALUE;
+		Blockchain columns = null;
+		Blockchain objects = null;
+		for (int round = 0; round < rounds; round++) {
+			long begin = System.nanoTime();
+			columns = table.toBlockchain(threshold);
+			columnTime = Math.min(columnTime, System.nanoTime() - begin);
+
+			// new objects in file order every round, a cached leaf hash would skip the hashing
+			ArrayList<Transaction> fresh = new ArrayList<>(table.size());
+			for (int row = 0; row < table.size(); row++) {
+				fresh.add(table.transaction(row));
+			}
+			PriorityLine<Transaction> line = new PriorityLine<>(fresh);
+			begin = System.nanoTime();
+			objects = new Blockchain(line, threshold);
+			for (Block block : objects) {
+				block.getRootHash();
+			}
+			objectTime = Math.min(objectTime, System.nanoTime() - begin);
+		}
+
+		Iterator<Block> expected = objects.iterator();
+		int blocks = 0;
+		for (Block block : columns) {
+			Hash256 stamped = block.getRootHash();
+			// rebuilding the tree hashes the block in its iteration order, which must give the stamped root
+			new MerkleTree(block);
+			if (!block.getRootHash().equals(stamped)) {
+				throw new RuntimeException("Block " + blocks + " iterates in another order than its root was computed in");
+			}
+			if (!expected.hasNext() || !stamped.equals(expected.next().getRootHash())) {
+				throw new RuntimeException("Block " + blocks + " differs from the PriorityLine chain");
+			}
+			blocks++;
+		}
+		if (expected.hasNext()) {
+			throw new RuntimeException("The PriorityLine chain has more blocks");
+		}
+		System.out.println(String.format("blocks: %d  columns: %d ms  objects: %d ms (best of %d)", blocks,
+				columnTime / 1000000, objectTime / 1000000, rounds));
+	}
+
+	private static long usedHeap(Runtime runtime) {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
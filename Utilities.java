@@ -1,8 +1,5 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
-import java.security.MessageDigest;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public final class Utilities {
@@ -17,31 +14,49 @@ public final class Utilities {
 	public static PriorityLine<Transaction> loadTransactions(String pgmFile) {
 
 
-		PriorityLine<Transaction> line = new PriorityLine<>();
+		return loadTransactions(pgmFile, new AddressDictionary());
+	}
 
 
-		try {
-			Scanner scanner = new Scanner(new File(pgmFile));
+	/**
+	 * Same as loadTransactions(pgmFile), interning the sender and receiver names
+	 * in the given dictionary: transactions share one String per address
+	 * 
+	 *                TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public static PriorityLine<Transaction> loadTransactions(String pgmFile, AddressDictionary addresses) {
 
 
-			// read all values
-			while (scanner.hasNext()) {
-				Transaction transaction = new Transaction(scanner.next(), scanner.next(),
-						scanner.nextInt(), scanner.nextInt());
-				line.enqueue(transaction);
-			}
+		ArrayList<Transaction> transactions = new ArrayList<>();
 
 
-			// close scanner
-			scanner.close();
+		// memory-mapped parse; malformed records report their line number
+		new TransactionFileParser(pgmFile, addresses).forEach(transactions::add);
 
 
-		} catch (Exception e) {
-			throw new RuntimeException("File not found");
+		// heapify the whole file at once instead of N sorted inserts
+		return new PriorityLine<>(transactions);
+	}
+
+
+	/**
+	 * Reads the transactions from a file written by BinaryTransactionWriter and
+	 * adds them to a priority queue
+	 * 
+	 *                TIME COMPLEXITY REQUIREMENT: O(N)
+	 */
+	public static PriorityLine<Transaction> loadBinaryTransactions(String binaryFile) {
+
+
+		ArrayList<Transaction> transactions = new ArrayList<>();
+
+
+		try (BinaryTransactionReader reader = new BinaryTransactionReader(binaryFile)) {
+			reader.forEach(transactions::add);
 		}
 
 
-		return line;
+		return new PriorityLine<>(transactions);
 	}
 
 
@@ -55,16 +70,16 @@ public final class Utilities {
 	 * 
 	 *         TIME COMPLEXITY REQUIREMENT: O(logN)
 	 */
-	public static boolean verifyTransaction(Transaction t, SinglyLinkedList<String> proof,
-			String blockRootHash) {
+	public static boolean verifyTransaction(Transaction t, SinglyLinkedList<Hash256> proof,
+			Hash256 blockRootHash) {
 		
-		String generatedHash = cryptographicHashFunction(t.toString());
+		Hash256 generatedHash = t.leafHash();
 
 
-		for (String hash : proof) {
+		for (Hash256 hash : proof) {
 
 
-			generatedHash = cryptographicHashFunction(generatedHash, hash);
+			generatedHash = Hash256.combine(generatedHash, hash);
 
 
 		}
@@ -72,6 +87,89 @@ public final class Utilities {
 	}
 
 
+	/**
+	 * @param transactions  are the transactions the multi-proof was extracted
+	 *                      for, in the same order
+	 * @param proof         is the proof returned by MerkleTree.extractMultiProof
+	 * @param blockRootHash is the root hash code stored in the respective block
+	 * @return true if every transaction the proof places in the block is
+	 *         verified against the root; false if the proof does not match or
+	 *         proves no transaction at all
+	 * 
+	 *         Every inner node on the union of the paths is hashed exactly once
+	 * 
+	 *         TIME COMPLEXITY REQUIREMENT: O(K logN) for K transactions
+	 */
+	public static boolean verifyTransactions(Iterable<Transaction> transactions, MultiProof proof,
+			Hash256 blockRootHash) {
+		ArrayList<Transaction> list = new ArrayList<>();
+		for (Transaction t : transactions) {
+			list.add(t);
+		}
+		if (list.size() != proof.size()) {
+			return false;
+		}
+		// sort the proven leaves by position, keeping track of the transaction
+		int present = 0;
+		long[] keys = new long[list.size()];
+		for (int i = 0; i < list.size(); i++) {
+			int position = proof.leafPosition(i);
+			if (position >= 0) {
+				if (position >= (1 << proof.height())) {
+					return false;
+				}
+				keys[present++] = ((long) position << 32) | i;
+			}
+		}
+		if (present == 0) {
+			return false;
+		}
+		Arrays.sort(keys, 0, present);
+		int[] positions = new int[present];
+		Hash256[] known = new Hash256[present];
+		int count = 0;
+		for (int i = 0; i < present; i++) {
+			int position = (int) (keys[i] >>> 32);
+			Hash256 leafHash = list.get((int) keys[i]).leafHash();
+			if (count > 0 && positions[count - 1] == position) {
+				// the same leaf requested twice must be the same transaction
+				if (!known[count - 1].equals(leafHash)) {
+					return false;
+				}
+				continue;
+			}
+			positions[count] = position;
+			known[count++] = leafHash;
+		}
+		int used = 0;
+		for (int level = 0; level < proof.height(); level++) {
+			int next = 0;
+			for (int i = 0; i < count; i++) {
+				Hash256 parent;
+				if (i + 1 < count && positions[i + 1] == (positions[i] ^ 1)) {
+					parent = Hash256.combine(known[i], known[i + 1]);
+					positions[next] = positions[i] >> 1;
+					i++;
+				} else {
+					if (used == proof.numOfHashes()) {
+						return false;
+					}
+					Hash256 sibling = proof.hash(used++);
+					if ((positions[i] & 1) == 0) {
+						parent = Hash256.combine(known[i], sibling);
+					} else {
+						parent = Hash256.combine(sibling, known[i]);
+					}
+					positions[next] = positions[i] >> 1;
+				}
+				known[next++] = parent;
+			}
+			count = next;
+		}
+		return used == proof.numOfHashes() && known[0].equals(blockRootHash);
+	}
+
+
 	/**
 	 **************************** DO NOT EDIT BELOW THIS LINE **************************************
 	 */
@@ -79,28 +177,14 @@ public final class Utilities {
 
 	/**
 	 * SHA-256 cryptographic hash function for a single input
+	 *
+	 * Thin adapter over HashEngine; the per-thread engine reuses its digest and
+	 * scratch buffers, hex is only built here for String callers
 	 */
 	public static String cryptographicHashFunction(String input) {
-		StringBuilder hexString = null;
-
-
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] encodedhash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-			hexString = new StringBuilder(2 * encodedhash.length);
-			for (int i = 0; i < encodedhash.length; i++) {
-				String hex = Integer.toHexString(0xff & encodedhash[i]);
-				if (hex.length() == 1) {
-					hexString.append('0');
-				}
-				hexString.append(hex);
-			}
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-		}
-
-
-		return hexString.toString();
+		byte[] digest = new byte[HashEngine.DIGEST_LENGTH];
+		HashEngine.get().hash(input, digest, 0);
+		return HashEngine.toHex(digest, 0);
 	}
 
 
@@ -109,27 +193,9 @@ public final class Utilities {
 	 * bitwise operator to merge the two hash codes
 	 */
 	public static String cryptographicHashFunction(String input1, String input2) {
-		StringBuilder hexString = null;
-
-
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] encodedhash1 = digest.digest(input1.getBytes(StandardCharsets.UTF_8));
-			byte[] encodedhash2 = digest.digest(input2.getBytes(StandardCharsets.UTF_8));
-			hexString = new StringBuilder(2 * encodedhash1.length);
-			for (int i = 0; i < encodedhash1.length; i++) {
-				String hex = Integer.toHexString(0xff & (encodedhash1[i] ^ encodedhash2[i]));
-				if (hex.length() == 1) {
-					hexString.append('0');
-				}
-				hexString.append(hex);
-			}
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-		}
-
-
-		return hexString.toString();
+		byte[] digest = new byte[HashEngine.DIGEST_LENGTH];
+		HashEngine.get().combine(input1, input2, digest, 0);
+		return HashEngine.toHex(digest, 0);
 	}
 
 